@@ -0,0 +1,37 @@
+package frc.lib.io.vision;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks the per-camera math done by Vision for every new pose estimate. */
+@State(Scope.Thread)
+public class VisionBenchmark {
+  private final Pose2d estimatedPose = new Pose2d(3.0, 4.0, new Rotation2d(0.5));
+  private final int[] singleTag = {4};
+  private final int[] multipleTags = {3, 4};
+  private Vision vision;
+
+  @Setup
+  public void setup() {
+    HAL.initialize(500, 0);
+    vision = new Vision(new VisionIO[] {new VisionIO() {}});
+  }
+
+  @Benchmark
+  public Matrix<N3, N1> getStandardDeviationsSingleTag() {
+    return vision.getStandardDeviations(singleTag, estimatedPose);
+  }
+
+  @Benchmark
+  public Matrix<N3, N1> getStandardDeviationsMultipleTags() {
+    return vision.getStandardDeviations(multipleTags, estimatedPose);
+  }
+}
@@ -0,0 +1,50 @@
+package frc.lib.leds;
+
+import edu.wpi.first.wpilibj.util.Color;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks filling an LED strip using each of the color setters. */
+@State(Scope.Thread)
+public class LEDStripBenchmark {
+  private static final int length = 60;
+
+  private final LEDStrip strip = new LEDStrip(length, 0);
+  private int offset = 0;
+
+  @Benchmark
+  public LEDStrip fillRGB() {
+    offset++;
+    for (int i = 0; i < length; i++) {
+      strip.setRGB(i, (i + offset) & 0xFF, 128, 255 - ((i + offset) & 0xFF));
+    }
+    return strip;
+  }
+
+  @Benchmark
+  public LEDStrip fillHSV() {
+    offset++;
+    for (int i = 0; i < length; i++) {
+      strip.setHSV(i, (i * 180 / length + offset) % 180, 255, 255);
+    }
+    return strip;
+  }
+
+  @Benchmark
+  public LEDStrip fillHSB() {
+    offset++;
+    for (int i = 0; i < length; i++) {
+      strip.setHSB(i, ((float) i / length + offset * 0.01f) % 1.0f, 1.0f, 1.0f);
+    }
+    return strip;
+  }
+
+  @Benchmark
+  public LEDStrip fillColor() {
+    for (int i = 0; i < length; i++) {
+      strip.setLED(i, Color.kFirstBlue);
+    }
+    return strip;
+  }
+}
@@ -0,0 +1,91 @@
+package frc.lib.utils;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import edu.wpi.first.wpilibj.Timer;
+import frc.lib.utils.RobotOdometry.TimestampedVisionUpdate;
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the RobotOdometry hot paths. The synthetic timestamps run far ahead of the FPGA
+ * clock, so nothing ages out of the history and it stays at its full capacity, the worst case.
+ * Each benchmark runs with the fixed gains and as an extended Kalman filter.
+ */
+@State(Scope.Thread)
+public class RobotOdometryBenchmark {
+  private static final double samplePeriodSecs = 1.0 / OdometryThread.FREQUENCY_HZ;
+  private static final double visionLatencySecs = 0.05;
+
+  @Param({"false", "true"})
+  public boolean useExtendedKalmanFilter;
+
+  private final Twist2d twist = new Twist2d(0.01, 0.002, 0.001);
+  private final Pose2d visionPose = new Pose2d(0.1, 0.02, new Rotation2d(0.01));
+  private final Matrix<N3, N1> visionStdDevs = VecBuilder.fill(0.5, 0.5, 1.0);
+  private final List<TimestampedVisionUpdate> visionData = new ArrayList<>();
+  private final double[] pose = new double[3];
+  private RobotOdometry odometry;
+  private double timestamp;
+  private TimestampedVisionUpdate delayedVisionUpdate;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    HAL.initialize(500, 0);
+    odometry = new RobotOdometry(VecBuilder.fill(0.003, 0.003, 0.0002), useExtendedKalmanFilter);
+    timestamp = Timer.getFPGATimestamp();
+    for (int i = 0; i < 1000; i++) {
+      timestamp += samplePeriodSecs;
+      odometry.addDriveData(timestamp, twist);
+    }
+    visionData.clear();
+    visionData.add(null);
+    delayedVisionUpdate =
+        new TimestampedVisionUpdate(timestamp - visionLatencySecs, visionPose, visionStdDevs);
+  }
+
+  /** A single drive sample, appended to the history. */
+  @Benchmark
+  public void addDriveData() {
+    timestamp += samplePeriodSecs;
+    odometry.addDriveData(timestamp, twist);
+  }
+
+  /**
+   * A drive sample followed by a vision sample from 50 ms earlier, which replays the suffix of the
+   * history with one Kalman correction. The only allocation should be the vision update record.
+   */
+  @Benchmark
+  public void addDriveAndVisionData() {
+    timestamp += samplePeriodSecs;
+    odometry.addDriveData(timestamp, twist);
+    visionData.set(
+        0, new TimestampedVisionUpdate(timestamp - visionLatencySecs, visionPose, visionStdDevs));
+    odometry.addVisionData(visionData);
+  }
+
+  /** An interpolated lookup into the history, should not allocate. */
+  @Benchmark
+  public double[] getPoseAt() {
+    odometry.getPoseAt(timestamp - visionLatencySecs, pose);
+    return pose;
+  }
+
+  /** The outlier check done for every vision sample before it is added, should not allocate. */
+  @Benchmark
+  public double getMahalanobisDistanceSquared() {
+    return odometry.getMahalanobisDistanceSquared(delayedVisionUpdate);
+  }
+}
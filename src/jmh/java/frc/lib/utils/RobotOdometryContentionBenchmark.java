@@ -0,0 +1,72 @@
+package frc.lib.utils;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.wpilibj.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the latest pose publication in RobotOdometry with one thread adding drive data (the
+ * odometry writer) and several threads reading the latest pose at the same time (commands, vision,
+ * PathPlanner callbacks).
+ */
+@State(Scope.Group)
+public class RobotOdometryContentionBenchmark {
+  private static final double samplePeriodSecs = 1.0 / OdometryThread.FREQUENCY_HZ;
+
+  private final Twist2d twist = new Twist2d(0.01, 0.002, 0.001);
+  private RobotOdometry odometry;
+  private double timestamp;
+
+  /** Per-thread destination for the allocation-free reads. */
+  @State(Scope.Thread)
+  public static class ReaderState {
+    final double[] estimate = new double[10];
+  }
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    HAL.initialize(500, 0);
+    odometry = new RobotOdometry(VecBuilder.fill(0.003, 0.003, 0.0002));
+    timestamp = Timer.getFPGATimestamp();
+  }
+
+  @Benchmark
+  @Group("publication")
+  @GroupThreads(1)
+  public void writer() {
+    timestamp += samplePeriodSecs;
+    odometry.addDriveData(timestamp, twist);
+  }
+
+  @Benchmark
+  @Group("publication")
+  @GroupThreads(3)
+  public double[] readEstimate(ReaderState state) {
+    odometry.getLatestEstimate(state.estimate);
+    return state.estimate;
+  }
+
+  @Benchmark
+  @Group("poses")
+  @GroupThreads(1)
+  public void poseWriter() {
+    timestamp += samplePeriodSecs;
+    odometry.addDriveData(timestamp, twist);
+  }
+
+  @Benchmark
+  @Group("poses")
+  @GroupThreads(3)
+  public Pose2d readPose() {
+    return odometry.getLatestPose();
+  }
+}
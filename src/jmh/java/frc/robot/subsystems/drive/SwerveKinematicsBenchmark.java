@@ -0,0 +1,131 @@
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import edu.wpi.first.math.util.Units;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the kinematics done by Drive every loop, next to the WPILib calls they replaced.
+ * DriveConstants reads the robot type from the roboRIO, so the ROBOT_2023 dimensions are repeated
+ * here rather than loaded.
+ */
+@State(Scope.Thread)
+public class SwerveKinematicsBenchmark {
+  private static final double trackWidthX = Units.inchesToMeters(12.75 * 2);
+  private static final double trackWidthY = Units.inchesToMeters(9.25 * 2);
+  private static final double maxLinearSpeed = Units.feetToMeters(14.5);
+  private static final double maxLinearAcceleration = 8.0;
+  private static final double maxSteeringVelocity = Units.degreesToRadians(720.0);
+  private static final double periodSecs = 0.02;
+
+  private final Translation2d[] moduleTranslations = {
+    new Translation2d(trackWidthX / 2.0, trackWidthY / 2.0),
+    new Translation2d(trackWidthX / 2.0, -trackWidthY / 2.0),
+    new Translation2d(-trackWidthX / 2.0, trackWidthY / 2.0),
+    new Translation2d(-trackWidthX / 2.0, -trackWidthY / 2.0)
+  };
+  private final SwerveDriveKinematics kinematics = new SwerveDriveKinematics(moduleTranslations);
+  // Alternating between two requests keeps the setpoint generator limiting every call
+  private final ChassisSpeeds[] speeds = {
+    new ChassisSpeeds(3.0, 1.0, 2.0),
+    new ChassisSpeeds(-2.0, 2.5, -1.0)
+  };
+  private int speedsIndex = 0;
+  private final Rotation2d[] moduleAngles = {
+    Rotation2d.fromDegrees(10.0),
+    Rotation2d.fromDegrees(100.0),
+    Rotation2d.fromDegrees(-80.0),
+    Rotation2d.fromDegrees(190.0)
+  };
+  private final SwerveModulePosition[] wheelDeltas = {
+    new SwerveModulePosition(0.01, moduleAngles[0]),
+    new SwerveModulePosition(0.01, moduleAngles[1]),
+    new SwerveModulePosition(0.01, moduleAngles[2]),
+    new SwerveModulePosition(0.01, moduleAngles[3])
+  };
+
+  // The same preallocated state as Drive
+  private final SwerveSetpointGenerator setpointGenerator =
+      new SwerveSetpointGenerator(maxLinearAcceleration, maxSteeringVelocity);
+  private final Rotation2d[] moduleHeadings = new Rotation2d[4];
+  private final SwerveModuleState[] desiredStates = new SwerveModuleState[4];
+  private final SwerveModuleState[] setpointStates = new SwerveModuleState[4];
+  private final SwerveModuleState[] optimizedSetpointStates = new SwerveModuleState[4];
+  private final double[] forwardKinematics =
+      SwerveKinematics.calculateForwardKinematics(moduleTranslations);
+  private final double[] moduleVectors = new double[8];
+  private final double[] chassisMotion = new double[3];
+
+  public SwerveKinematicsBenchmark() {
+    for (int i = 0; i < 4; i++) {
+      moduleHeadings[i] = new Rotation2d();
+      desiredStates[i] = new SwerveModuleState();
+      setpointStates[i] = new SwerveModuleState();
+      optimizedSetpointStates[i] = new SwerveModuleState();
+      moduleVectors[i * 2] = wheelDeltas[i].distanceMeters * wheelDeltas[i].angle.getCos();
+      moduleVectors[i * 2 + 1] = wheelDeltas[i].distanceMeters * wheelDeltas[i].angle.getSin();
+    }
+  }
+
+  /**
+   * The setpoint calculation in Drive.runVelocity: the discretization and inverse kinematics from
+   * SwerveKinematics, the setpoint generator, and optimizing each state the way Module does.
+   */
+  @Benchmark
+  public SwerveModuleState[] runVelocity() {
+    SwerveKinematics.discretize(nextSpeeds(), periodSecs, chassisMotion);
+    SwerveKinematics.toModuleStates(
+        chassisMotion, moduleTranslations, moduleHeadings, desiredStates);
+    SwerveDriveKinematics.desaturateWheelSpeeds(desiredStates, maxLinearSpeed);
+
+    setpointGenerator.generate(desiredStates, setpointStates, periodSecs);
+
+    for (int i = 0; i < 4; i++) {
+      SwerveKinematics.optimize(
+          setpointStates[i], moduleAngles[i].getRadians(), optimizedSetpointStates[i]);
+    }
+    return optimizedSetpointStates;
+  }
+
+  /** The WPILib calls Drive.runVelocity used before, as a baseline for {@link #runVelocity()}. */
+  @Benchmark
+  public SwerveModuleState[] runVelocityWpilib() {
+    ChassisSpeeds discreteSpeeds = ChassisSpeeds.discretize(nextSpeeds(), periodSecs);
+    SwerveModuleState[] states = kinematics.toSwerveModuleStates(discreteSpeeds);
+    SwerveDriveKinematics.desaturateWheelSpeeds(states, maxLinearSpeed);
+    SwerveModuleState[] optimizedStates = new SwerveModuleState[4];
+    for (int i = 0; i < 4; i++) {
+      optimizedStates[i] = SwerveModuleState.optimize(states[i], moduleAngles[i]);
+    }
+    return optimizedStates;
+  }
+
+  /**
+   * The chassis motion calculated from the wheel deltas for every odometry sample in
+   * Drive.periodic, with the forward kinematics from SwerveKinematics.
+   */
+  @Benchmark
+  public double[] toChassisMotion() {
+    SwerveKinematics.toChassisMotion(forwardKinematics, moduleVectors, chassisMotion);
+    return chassisMotion;
+  }
+
+  /** The WPILib call Drive.periodic used before, as a baseline for {@link #toChassisMotion()}. */
+  @Benchmark
+  public Twist2d toTwist2dWpilib() {
+    return kinematics.toTwist2d(wheelDeltas);
+  }
+
+  private ChassisSpeeds nextSpeeds() {
+    speedsIndex = 1 - speedsIndex;
+    return speeds[speedsIndex];
+  }
+}
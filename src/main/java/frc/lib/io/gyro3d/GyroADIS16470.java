@@ -4,27 +4,39 @@ import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Rotation3d;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.ADIS16470_IMU;
+import frc.lib.utils.OdometryThread;
+import frc.lib.utils.SampleQueue;
 
 public class GyroADIS16470 implements GyroIO {
   private final ADIS16470_IMU gyro;
+  private final SampleQueue yawPositionQueue;
 
   public GyroADIS16470() {
     this.gyro = new ADIS16470_IMU();
     gyro.calibrate();
     gyro.reset();
+    yawPositionQueue =
+        OdometryThread.getInstance()
+            .registerSignal(() -> gyro.getAngle(ADIS16470_IMU.IMUAxis.kYaw));
   }
 
   @Override
   public void updateInputs(GyroIOInputs inputs) {
     inputs.connected = gyro.isConnected();
     inputs.yaw = Rotation2d.fromDegrees(gyro.getAngle(ADIS16470_IMU.IMUAxis.kYaw));
-    inputs.rollRate = gyro.getRate(ADIS16470_IMU.IMUAxis.kRoll);
-    inputs.pitchRate = gyro.getRate(ADIS16470_IMU.IMUAxis.kPitch);
-    inputs.yawRate = gyro.getRate(ADIS16470_IMU.IMUAxis.kYaw);
+    inputs.rollRate = Units.degreesToRadians(gyro.getRate(ADIS16470_IMU.IMUAxis.kRoll));
+    inputs.pitchRate = Units.degreesToRadians(gyro.getRate(ADIS16470_IMU.IMUAxis.kPitch));
+    inputs.yawRate = Units.degreesToRadians(gyro.getRate(ADIS16470_IMU.IMUAxis.kYaw));
     inputs.rotation3d =
         new Rotation3d(
             Units.degreesToRadians(gyro.getAngle(ADIS16470_IMU.IMUAxis.kRoll)),
             Units.degreesToRadians(gyro.getAngle(ADIS16470_IMU.IMUAxis.kPitch)),
             Units.degreesToRadians(gyro.getAngle(ADIS16470_IMU.IMUAxis.kYaw)));
+
+    inputs.odometryYawPositions = new Rotation2d[yawPositionQueue.size()];
+    for (int i = 0; i < inputs.odometryYawPositions.length; i++) {
+      inputs.odometryYawPositions[i] = Rotation2d.fromDegrees(yawPositionQueue.get(i));
+    }
+    yawPositionQueue.clear();
   }
 }
@@ -10,9 +10,12 @@ public interface GyroIO {
     public boolean connected = false;
     public Rotation2d yaw = new Rotation2d();
     public Rotation3d rotation3d = new Rotation3d();
+    // Angular rates in radians/sec, every implementation converts from its native units
     public double rollRate = 0.0;
     public double yawRate = 0.0;
     public double pitchRate = 0.0;
+
+    public Rotation2d[] odometryYawPositions = new Rotation2d[] {};
   }
 
   /**
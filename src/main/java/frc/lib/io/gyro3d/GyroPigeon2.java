@@ -1,13 +1,16 @@
 package frc.lib.io.gyro3d;
 
 import com.ctre.phoenix6.BaseStatusSignal;
-import com.ctre.phoenix6.StatusCode;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.hardware.Pigeon2;
 import edu.wpi.first.math.geometry.Quaternion;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Rotation3d;
 import edu.wpi.first.math.util.Units;
+import frc.lib.utils.CANBusBudget;
+import frc.lib.utils.OdometryThread;
+import frc.lib.utils.PhoenixSignalRegistry;
+import frc.lib.utils.SampleQueue;
 
 public class GyroPigeon2 implements GyroIO {
   private final Pigeon2 pigeon;
@@ -19,6 +22,8 @@ public class GyroPigeon2 implements GyroIO {
   private final StatusSignal<Double> quatX;
   private final StatusSignal<Double> quatY;
   private final StatusSignal<Double> quatZ;
+  private final BaseStatusSignal[] signals;
+  private final SampleQueue yawPositionQueue;
 
   public GyroPigeon2(int deviceID) {
     pigeon = new Pigeon2(deviceID);
@@ -30,14 +35,36 @@ public class GyroPigeon2 implements GyroIO {
     quatX = pigeon.getQuatX();
     quatY = pigeon.getQuatY();
     quatZ = pigeon.getQuatZ();
+
+    // Only send the signals which are read, yaw fast enough for the odometry thread and the rest
+    // once per loop. The odometry thread refreshes its own copy of the yaw signal, the main loop's
+    // copy is not thread safe.
+    StatusSignal<Double> odometryYaw = pigeon.getYaw().clone();
+    CANBusBudget.configurePhoenixSignals(OdometryThread.FREQUENCY_HZ, odometryYaw);
+    CANBusBudget.configurePhoenixSignals(
+        CANBusBudget.LOOP_FREQUENCY_HZ,
+        yawVelocity,
+        pitchVelocity,
+        rollVelocity,
+        quatW,
+        quatX,
+        quatY,
+        quatZ);
+    CANBusBudget.optimizeBusUtilization(pigeon);
+
+    signals =
+        new BaseStatusSignal[] {
+          yaw, yawVelocity, pitchVelocity, rollVelocity, quatW, quatX, quatY, quatZ
+        };
+    PhoenixSignalRegistry.register(signals);
+    yawPositionQueue =
+        OdometryThread.getInstance().registerSignal(() -> odometryYaw.refresh().getValueAsDouble());
   }
 
   @Override
   public void updateInputs(GyroIOInputs inputs) {
-    inputs.connected =
-        BaseStatusSignal.refreshAll(
-                yaw, yawVelocity, pitchVelocity, rollVelocity, quatW, quatX, quatY, quatZ)
-            .equals(StatusCode.OK);
+    // The signals are refreshed by Drive through PhoenixSignalRegistry
+    inputs.connected = PhoenixSignalRegistry.isAllGood(signals);
     inputs.yaw = Rotation2d.fromDegrees(yaw.getValueAsDouble());
     inputs.rollRate = Units.degreesToRadians(rollVelocity.getValueAsDouble());
     inputs.pitchRate = Units.degreesToRadians(pitchVelocity.getValueAsDouble());
@@ -49,5 +76,11 @@ public class GyroPigeon2 implements GyroIO {
                 quatX.getValueAsDouble(),
                 quatY.getValueAsDouble(),
                 quatZ.getValueAsDouble()));
+
+    inputs.odometryYawPositions = new Rotation2d[yawPositionQueue.size()];
+    for (int i = 0; i < inputs.odometryYawPositions.length; i++) {
+      inputs.odometryYawPositions[i] = Rotation2d.fromDegrees(yawPositionQueue.get(i));
+    }
+    yawPositionQueue.clear();
   }
 }
@@ -4,6 +4,7 @@ import com.revrobotics.CANSparkLowLevel.MotorType;
 import com.revrobotics.CANSparkMax;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.RobotController;
+import frc.lib.utils.CANBusBudget;
 
 /** A Motor Controller IO class that interacts with a Spark MAX. */
 public class SimpleMotorControllerIOSparkMAX implements SimpleMotorControllerIO {
@@ -24,6 +25,11 @@ public class SimpleMotorControllerIOSparkMAX implements SimpleMotorControllerIO
     this.motor
         .getEncoder()
         .setVelocityConversionFactor(Units.rotationsPerMinuteToRadiansPerSecond(1));
+    CANBusBudget.configureSparkMax(
+        motor,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS);
   }
 
   @Override
@@ -0,0 +1,84 @@
+package frc.lib.io.vision;
+
+import edu.wpi.first.apriltag.AprilTag;
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+
+/**
+ * The poses of the AprilTags in a field layout, as primitive arrays indexed by tag ID. Looking up
+ * a tag in the layout returns a new Optional each time, this table is built once and reading it
+ * does not allocate.
+ *
+ * <p>The table cannot be modified after it is built, so it can be shared by every user of the
+ * layout.
+ */
+public class AprilTagPoseTable {
+  private final boolean[] present;
+  private final double[] x;
+  private final double[] y;
+  private final double[] z;
+  private final double[] yaw;
+
+  /**
+   * Builds a table from the tags in a field layout.
+   *
+   * @param layout the field layout
+   */
+  public AprilTagPoseTable(AprilTagFieldLayout layout) {
+    int maxId = -1;
+    for (AprilTag tag : layout.getTags()) {
+      maxId = Math.max(maxId, tag.ID);
+    }
+    present = new boolean[maxId + 1];
+    x = new double[maxId + 1];
+    y = new double[maxId + 1];
+    z = new double[maxId + 1];
+    yaw = new double[maxId + 1];
+    for (AprilTag tag : layout.getTags()) {
+      if (tag.ID < 0) {
+        continue;
+      }
+      present[tag.ID] = true;
+      x[tag.ID] = tag.pose.getX();
+      y[tag.ID] = tag.pose.getY();
+      z[tag.ID] = tag.pose.getZ();
+      yaw[tag.ID] = tag.pose.getRotation().getZ();
+    }
+  }
+
+  /** Returns true if the layout contains a tag with the given ID. */
+  public boolean hasTag(int id) {
+    return id >= 0 && id < present.length && present[id];
+  }
+
+  /** Returns the x coordinate of a tag in meters. The tag must be in the layout. */
+  public double getX(int id) {
+    return x[id];
+  }
+
+  /** Returns the y coordinate of a tag in meters. The tag must be in the layout. */
+  public double getY(int id) {
+    return y[id];
+  }
+
+  /** Returns the height of a tag in meters. The tag must be in the layout. */
+  public double getZ(int id) {
+    return z[id];
+  }
+
+  /** Returns the direction a tag faces in radians. The tag must be in the layout. */
+  public double getYaw(int id) {
+    return yaw[id];
+  }
+
+  /**
+   * Returns the distance on the floor from a point to a tag. The tag must be in the layout.
+   *
+   * @param id the ID of the tag
+   * @param pointX the x coordinate of the point in meters
+   * @param pointY the y coordinate of the point in meters
+   * @return the distance in meters, ignoring the height of the tag
+   */
+  public double getDistance(int id, double pointX, double pointY) {
+    return Math.hypot(x[id] - pointX, y[id] - pointY);
+  }
+}
@@ -0,0 +1,125 @@
+package frc.lib.io.vision;
+
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Collects the health and throughput of a single camera and logs it once per window: the frames
+ * received and dropped per second, percentiles of the capture-to-RIO latency, the fraction of pose
+ * estimates accepted into odometry and the average number of tags per estimate.
+ *
+ * <p>The latencies go into a histogram with fixed bins, so adding a frame never allocates. The
+ * percentiles are accurate to the width of a bin.
+ */
+public class CameraHealthMonitor {
+  private static final double WINDOW_SECS = 1.0;
+  private static final double LATENCY_BIN_SECS = 0.005;
+  // The last bin also holds every latency beyond the range of the histogram
+  private static final int LATENCY_BINS = 40;
+
+  private final int[] latencyHistogram = new int[LATENCY_BINS];
+  private double windowStartSecs = Double.NaN;
+  private int receivedCount;
+  private int droppedCount;
+  private int estimateCount;
+  private int acceptedCount;
+  private int tagCount;
+
+  private final String framesPerSecondKey;
+  private final String droppedFramesPerSecondKey;
+  private final String latencyP50Key;
+  private final String latencyP95Key;
+  private final String latencyP99Key;
+  private final String acceptedFractionKey;
+  private final String averageTagCountKey;
+
+  /**
+   * Creates a new CameraHealthMonitor.
+   *
+   * @param logKey the key to log the health under
+   */
+  public CameraHealthMonitor(String logKey) {
+    framesPerSecondKey = logKey + "/FramesPerSecond";
+    droppedFramesPerSecondKey = logKey + "/DroppedFramesPerSecond";
+    latencyP50Key = logKey + "/LatencyP50Secs";
+    latencyP95Key = logKey + "/LatencyP95Secs";
+    latencyP99Key = logKey + "/LatencyP99Secs";
+    acceptedFractionKey = logKey + "/AcceptedFraction";
+    averageTagCountKey = logKey + "/AverageTagCount";
+  }
+
+  /**
+   * Adds the frames received from the camera this loop, and logs the statistics if the window has
+   * ended. Should be called once per loop, after the frames' pose estimates have been added.
+   *
+   * @param timestampSecs the current time
+   * @param received the number of frames received, with or without a pose estimate
+   * @param dropped the number of frames which were missing between the received frames
+   */
+  public void update(double timestampSecs, int received, int dropped) {
+    receivedCount += received;
+    droppedCount += dropped;
+    if (Double.isNaN(windowStartSecs)) {
+      windowStartSecs = timestampSecs;
+    }
+
+    double elapsedSecs = timestampSecs - windowStartSecs;
+    if (elapsedSecs < WINDOW_SECS) {
+      return;
+    }
+    Logger.recordOutput(framesPerSecondKey, receivedCount / elapsedSecs);
+    Logger.recordOutput(droppedFramesPerSecondKey, droppedCount / elapsedSecs);
+    Logger.recordOutput(latencyP50Key, getLatencyPercentile(0.50));
+    Logger.recordOutput(latencyP95Key, getLatencyPercentile(0.95));
+    Logger.recordOutput(latencyP99Key, getLatencyPercentile(0.99));
+    Logger.recordOutput(
+        acceptedFractionKey, estimateCount > 0 ? (double) acceptedCount / estimateCount : 0.0);
+    Logger.recordOutput(
+        averageTagCountKey, estimateCount > 0 ? (double) tagCount / estimateCount : 0.0);
+
+    windowStartSecs = timestampSecs;
+    receivedCount = 0;
+    droppedCount = 0;
+    estimateCount = 0;
+    acceptedCount = 0;
+    tagCount = 0;
+    for (int bin = 0; bin < LATENCY_BINS; bin++) {
+      latencyHistogram[bin] = 0;
+    }
+  }
+
+  /**
+   * Adds a frame with a pose estimate.
+   *
+   * @param latencySecs the time from the capture of the frame until it reached the RIO
+   * @param tags the number of tags used by the estimate
+   * @param accepted true if the estimate was added to odometry
+   */
+  public void addEstimate(double latencySecs, int tags, boolean accepted) {
+    int bin = (int) (latencySecs / LATENCY_BIN_SECS);
+    latencyHistogram[Math.max(0, Math.min(bin, LATENCY_BINS - 1))]++;
+    estimateCount++;
+    tagCount += tags;
+    if (accepted) {
+      acceptedCount++;
+    }
+  }
+
+  /**
+   * Returns the latency below which the given fraction of this window's estimates fall, as the
+   * upper edge of the histogram bin which contains it.
+   */
+  private double getLatencyPercentile(double fraction) {
+    if (estimateCount == 0) {
+      return 0.0;
+    }
+    int target = (int) Math.ceil(fraction * estimateCount);
+    int count = 0;
+    for (int bin = 0; bin < LATENCY_BINS; bin++) {
+      count += latencyHistogram[bin];
+      if (count >= target) {
+        return (bin + 1) * LATENCY_BIN_SECS;
+      }
+    }
+    return LATENCY_BINS * LATENCY_BIN_SECS;
+  }
+}
@@ -14,8 +14,9 @@ import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import frc.lib.utils.RobotOdometry;
 import frc.lib.utils.TunableNumber;
 import frc.robot.FieldConstants;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Optional;
 import org.littletonrobotics.junction.Logger;
 
 /**
@@ -29,19 +30,52 @@ public class Vision extends SubsystemBase {
   private VisionIO[] visionIOs;
   private final VisionIOInputsAutoLogged[] ios;
   private double[] lastTimestamps;
+  private final Pose3d[] latestRobotPoses;
+  private final double[] latestTimestamps;
+  private final double[] poseAtCapture = new double[3];
+  private final int[] acceptedCounts;
+  private final int[] rejectedCounts;
+  private final int[] outOfHistoryCounts;
+  private final int[] consecutiveRejectedCounts;
+
+  // The tags each camera saw in its latest frame, bit n set for tag ID n, and the same tags as an
+  // array of IDs, only rebuilt when the mask changes
+  private final long[] visibleTagMasks;
+  private final int[][] visibleTagIDs;
+
+  // Log keys, built once rather than concatenated every loop
+  private final String[] inputsKeys;
+  private final String[] robotPoseKeys;
+  private final String[] visibleTagMaskKeys;
+  private final String[] visibleTagIDsKeys;
+  private final String[] mahalanobisDistanceKeys;
+  private final String[] acceptedCountKeys;
+  private final String[] rejectedCountKeys;
+  private final String[] outOfHistoryCountKeys;
+  private final String[] pipelineLatencyKeys;
+  private final String[] latencyKeys;
+  private final String[] captureTimeErrorKeys;
+  private final CameraHealthMonitor[] healthMonitors;
+  private static final Pose2d noPose = new Pose2d();
 
   private AprilTagFieldLayout layout;
+  private final AprilTagPoseTable tagPoses = FieldConstants.aprilTagPoses;
 
   private boolean isEnabled = true;
   private boolean isVisionUpdating = false;
 
   private RobotOdometry odometry;
+  private final List<RobotOdometry.TimestampedVisionUpdate> visionUpdates = new ArrayList<>();
+  private static final Comparator<RobotOdometry.TimestampedVisionUpdate> compareTimestamp =
+      Comparator.comparingDouble(RobotOdometry.TimestampedVisionUpdate::timestamp);
   private final TunableNumber poseDifferenceThreshold =
       new TunableNumber("Vision/VisionPoseThreshold", POSE_DIFFERENCE_THRESHOLD_METERS);
   private final TunableNumber stdDevSlope = new TunableNumber("Vision/stdDevSlope", 0.10);
   private final TunableNumber stdDevPower = new TunableNumber("Vision/stdDevPower", 2.0);
   private final TunableNumber stdDevMultiTagFactor =
       new TunableNumber("Vision/stdDevMultiTagFactor", 0.2);
+  private final TunableNumber outlierThreshold =
+      new TunableNumber("Vision/OutlierChiSquaredThreshold", OUTLIER_CHI_SQUARED_THRESHOLD);
 
   /**
    * Create a new Vision subsystem. The number of VisionIO objects passed to the constructor must
@@ -54,9 +88,43 @@ public class Vision extends SubsystemBase {
   public Vision(VisionIO[] visionIOs) {
     this.visionIOs = visionIOs;
     this.lastTimestamps = new double[visionIOs.length];
+    this.latestRobotPoses = new Pose3d[visionIOs.length];
+    this.latestTimestamps = new double[visionIOs.length];
+    this.acceptedCounts = new int[visionIOs.length];
+    this.rejectedCounts = new int[visionIOs.length];
+    this.outOfHistoryCounts = new int[visionIOs.length];
+    this.consecutiveRejectedCounts = new int[visionIOs.length];
+    this.visibleTagMasks = new long[visionIOs.length];
+    this.visibleTagIDs = new int[visionIOs.length][];
+    this.inputsKeys = new String[visionIOs.length];
+    this.robotPoseKeys = new String[visionIOs.length];
+    this.visibleTagMaskKeys = new String[visionIOs.length];
+    this.visibleTagIDsKeys = new String[visionIOs.length];
+    this.mahalanobisDistanceKeys = new String[visionIOs.length];
+    this.acceptedCountKeys = new String[visionIOs.length];
+    this.rejectedCountKeys = new String[visionIOs.length];
+    this.outOfHistoryCountKeys = new String[visionIOs.length];
+    this.pipelineLatencyKeys = new String[visionIOs.length];
+    this.latencyKeys = new String[visionIOs.length];
+    this.captureTimeErrorKeys = new String[visionIOs.length];
+    this.healthMonitors = new CameraHealthMonitor[visionIOs.length];
     this.ios = new VisionIOInputsAutoLogged[visionIOs.length];
     for (int i = 0; i < visionIOs.length; i++) {
       this.ios[i] = new VisionIOInputsAutoLogged();
+      this.latestRobotPoses[i] = new Pose3d();
+      this.visibleTagIDs[i] = new int[] {};
+      this.inputsKeys[i] = "Vision/" + i;
+      this.robotPoseKeys[i] = "Vision/" + i + "/RobotPose";
+      this.visibleTagMaskKeys[i] = "Vision/" + i + "/VisibleTagMask";
+      this.visibleTagIDsKeys[i] = "Vision/" + i + "/VisibleTagIDs";
+      this.mahalanobisDistanceKeys[i] = "Vision/" + i + "/MahalanobisDistanceSquared";
+      this.acceptedCountKeys[i] = "Vision/" + i + "/AcceptedCount";
+      this.rejectedCountKeys[i] = "Vision/" + i + "/RejectedCount";
+      this.outOfHistoryCountKeys[i] = "Vision/" + i + "/OutOfHistoryCount";
+      this.pipelineLatencyKeys[i] = "Vision/" + i + "/PipelineLatencySecs";
+      this.latencyKeys[i] = "Vision/" + i + "/LatencySecs";
+      this.captureTimeErrorKeys[i] = "Vision/" + i + "/CaptureTimeOdometryErrorMeters";
+      this.healthMonitors[i] = new CameraHealthMonitor("Vision/" + i + "/Health");
     }
 
     // retrieve a reference to the pose estimator singleton
@@ -72,58 +140,194 @@ public class Vision extends SubsystemBase {
 
   /**
    * This method is invoked each iteration of the scheduler. It updates the inputs for each of the
-   * VisionIO objects and, for each, updates the pose estimator based on the most recent detected
-   * AprilTags.
+   * VisionIO objects and updates the pose estimator once, with every frame received from every
+   * camera since the last iteration.
    */
   @Override
   public void periodic() {
     isVisionUpdating = false;
+    visionUpdates.clear();
     for (int i = 0; i < visionIOs.length; i++) {
 
       visionIOs[i].updateInputs(ios[i]);
-      Logger.processInputs("Vision/" + i, ios[i]);
+      Logger.processInputs(inputsKeys[i], ios[i]);
 
       // "zero" the robot poses and which tags are seen such that old data is not used if no new
       // data has been available in the past 0.1 seconds
-      if (ios[i].lastCameraTimestamp + 0.1 < lastTimestamps[i]) {
-        Logger.recordOutput("Vision/" + i + "/RobotPose", new Pose2d());
-        for (AprilTag tag : this.layout.getTags()) {
-          Logger.recordOutput("Vision/" + i + "/TagID" + "_" + tag.ID, false);
-        }
+      if (ios[i].frameTimestamps.length == 0
+          && latestTimestamps[i] + 0.1 < Logger.getTimestamp() / 1e6) {
+        Logger.recordOutput(robotPoseKeys[i], noPose);
+        setVisibleTags(i, 0L);
       }
 
-      // only process the vision data if the timestamp is newer than the last one
-      if (lastTimestamps[i] < ios[i].lastCameraTimestamp) {
-        lastTimestamps[i] = ios[i].lastCameraTimestamp;
-        Pose2d estimatedRobotPose2d = ios[i].estimatedRobotPose.toPose2d();
-
-        // only update the pose estimator if the vision subsystem is enabled
-        if (isEnabled) {
-          // when updating the pose estimator, specify standard deviations based on the distance
-          // from the robot to the AprilTag (the greater the distance, the less confident we are
-          // in the measurement)
-          odometry.addVisionData(
-              List.of(
-                  new RobotOdometry.TimestampedVisionUpdate(
-                      ios[i].estimatedRobotPoseTimestamp,
-                      estimatedRobotPose2d,
-                      getStandardDeviations(i, estimatedRobotPose2d))));
-          isVisionUpdating = true;
-        }
+      // process every frame received since the last iteration, in order
+      int tagOffset = 0;
+      int latestFrame = -1;
+      int latestTagOffset = 0;
+      for (int frame = 0; frame < ios[i].frameTimestamps.length; frame++) {
+        int tagCount = ios[i].frameTagCounts[frame];
+        double timestamp = ios[i].frameTimestamps[frame];
 
-        for (AprilTag tag : this.layout.getTags()) {
-          Logger.recordOutput("Vision/" + i + "/TagID" + "_" + tag.ID, false);
-        }
-        for (int tagID : ios[i].estimatedRobotPoseTags) {
-          Logger.recordOutput("Vision/" + i + "/TagID" + "_" + tagID, true);
+        // only process the vision data if the timestamp is newer than the last one
+        boolean accepted = false;
+        if (lastTimestamps[i] < timestamp) {
+          lastTimestamps[i] = timestamp;
+          accepted = processFrame(i, timestamp, ios[i].frameRobotPoses[frame], tagOffset, tagCount);
+          latestFrame = frame;
+          latestTagOffset = tagOffset;
         }
+        healthMonitors[i].addEstimate(ios[i].framePipelineLatencySecs[frame], tagCount, accepted);
+        tagOffset += tagCount;
+      }
+      healthMonitors[i].update(
+          Logger.getTimestamp() / 1e6, ios[i].receivedFrameCount, ios[i].droppedFrameCount);
+
+      if (latestFrame >= 0) {
+        latestRobotPoses[i] = ios[i].frameRobotPoses[latestFrame];
+        latestTimestamps[i] = ios[i].frameTimestamps[latestFrame];
 
-        Logger.recordOutput("Vision/" + i + "/RobotPose", estimatedRobotPose2d);
+        // the time the coprocessor took, and the total time from capture until the frame is fused
+        Logger.recordOutput(pipelineLatencyKeys[i], ios[i].framePipelineLatencySecs[latestFrame]);
+        Logger.recordOutput(latencyKeys[i], Logger.getTimestamp() / 1e6 - latestTimestamps[i]);
+
+        setVisibleTags(
+            i,
+            encodeTagMask(ios[i].frameTags, latestTagOffset, ios[i].frameTagCounts[latestFrame]));
+
+        Logger.recordOutput(robotPoseKeys[i], latestRobotPoses[i].toPose2d());
       }
+      Logger.recordOutput(visibleTagMaskKeys[i], visibleTagMasks[i]);
+      Logger.recordOutput(visibleTagIDsKeys[i], visibleTagIDs[i]);
+    }
+
+    // Submit every camera's measurements as one batch, so the odometry history is only replayed
+    // once per loop
+    if (!visionUpdates.isEmpty()) {
+      visionUpdates.sort(compareTimestamp);
+      odometry.addVisionData(visionUpdates);
     }
     Logger.recordOutput("Vision/IsEnabled", isEnabled);
   }
 
+  /**
+   * Adds a single frame from a camera to this iteration's vision updates, unless it is rejected as
+   * an outlier, falls outside the odometry history, or the vision subsystem is disabled.
+   *
+   * @param i the index of the camera
+   * @param timestamp the time the frame was captured
+   * @param robotPose the robot pose estimated from the frame
+   * @param tagOffset the index of the frame's first tag in the camera's frameTags
+   * @param tagCount the number of tags used by the frame
+   * @return true if the frame was added to the vision updates
+   */
+  private boolean processFrame(
+      int i, double timestamp, Pose3d robotPose, int tagOffset, int tagCount) {
+    // only update the pose estimator if the vision subsystem is enabled
+    if (!isEnabled) {
+      return false;
+    }
+
+    // odometry drops frames captured before its oldest or after its latest drive sample, so they
+    // are neither accepted nor rejected
+    if (!odometry.isWithinHistory(timestamp)) {
+      outOfHistoryCounts[i]++;
+      Logger.recordOutput(outOfHistoryCountKeys[i], outOfHistoryCounts[i]);
+      return false;
+    }
+    Pose2d estimatedRobotPose2d = robotPose.toPose2d();
+
+    // when updating the pose estimator, specify standard deviations based on the distance from the
+    // robot to the AprilTag (the greater the distance, the less confident we are in the
+    // measurement)
+    var visionUpdate =
+        new RobotOdometry.TimestampedVisionUpdate(
+            timestamp,
+            estimatedRobotPose2d,
+            getStandardDeviations(ios[i].frameTags, tagOffset, tagCount, estimatedRobotPose2d));
+
+    // reject measurements that are inconsistent with odometry at the time they were captured
+    // (e.g., reflections or ambiguous single tag solutions) before they reach the pose estimator
+    double mahalanobisDistanceSquared = odometry.getMahalanobisDistanceSquared(visionUpdate);
+    boolean isOutlier = mahalanobisDistanceSquared > outlierThreshold.get();
+    boolean accepted = !isOutlier || consecutiveRejectedCounts[i] >= MAX_CONSECUTIVE_OUTLIERS;
+    if (accepted) {
+      if (isOutlier) {
+        // the camera has disagreed with odometry for too long, so odometry is probably wrong; trust
+        // this frame more than usual so the pose recovers in a few frames
+        visionUpdate =
+            new RobotOdometry.TimestampedVisionUpdate(
+                timestamp,
+                estimatedRobotPose2d,
+                visionUpdate.stdDevs(),
+                OUTLIER_RECOVERY_NOISE_SCALE);
+      }
+      visionUpdates.add(visionUpdate);
+
+      // how far the accepted frame is from odometry at the time it was captured, rather than from
+      // the latest pose, which has moved on by the time the frame arrives
+      odometry.getPoseAt(timestamp, poseAtCapture);
+      Logger.recordOutput(
+          captureTimeErrorKeys[i],
+          Math.hypot(
+              estimatedRobotPose2d.getX() - poseAtCapture[0],
+              estimatedRobotPose2d.getY() - poseAtCapture[1]));
+      acceptedCounts[i]++;
+      consecutiveRejectedCounts[i] = 0;
+      isVisionUpdating = true;
+    } else {
+      rejectedCounts[i]++;
+      consecutiveRejectedCounts[i]++;
+    }
+    Logger.recordOutput(mahalanobisDistanceKeys[i], mahalanobisDistanceSquared);
+    Logger.recordOutput(acceptedCountKeys[i], acceptedCounts[i]);
+    Logger.recordOutput(rejectedCountKeys[i], rejectedCounts[i]);
+    return accepted;
+  }
+
+  /** Updates the tags a camera sees, only rebuilding the array of IDs if they have changed. */
+  private void setVisibleTags(int i, long mask) {
+    if (mask != visibleTagMasks[i]) {
+      visibleTagMasks[i] = mask;
+      visibleTagIDs[i] = decodeTagMask(mask);
+    }
+  }
+
+  /**
+   * Packs tag IDs into a bitmask, with bit n set if tag ID n is present. IDs outside 0 to 63 do not
+   * fit and are left out, field layouts use much smaller IDs.
+   *
+   * @param tags an array containing the tag IDs
+   * @param offset the index of the first tag ID to pack
+   * @param count the number of tag IDs to pack
+   * @return the bitmask of the tag IDs
+   */
+  public static long encodeTagMask(int[] tags, int offset, int count) {
+    long mask = 0L;
+    for (int index = offset; index < offset + count; index++) {
+      if (tags[index] >= 0 && tags[index] < Long.SIZE) {
+        mask |= 1L << tags[index];
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * Unpacks a bitmask logged under Vision/[camera]/VisibleTagMask into the tag IDs it contains, in
+   * increasing order.
+   *
+   * @param mask the bitmask, with bit n set if tag ID n is present
+   * @return the tag IDs in the bitmask
+   */
+  public static int[] decodeTagMask(long mask) {
+    int[] tags = new int[Long.bitCount(mask)];
+    long remaining = mask;
+    for (int index = 0; index < tags.length; index++) {
+      tags[index] = Long.numberOfTrailingZeros(remaining);
+      remaining &= remaining - 1;
+    }
+    return tags;
+  }
+
   /**
    * Returns true if the vision subsystem is enabled.
    *
@@ -143,9 +347,9 @@ public class Vision extends SubsystemBase {
     Pose3d robotPoseFromMostRecentData = null;
     double mostRecentTimestamp = 0.0;
     for (int i = 0; i < visionIOs.length; i++) {
-      if (ios[i].estimatedRobotPoseTimestamp > mostRecentTimestamp) {
-        robotPoseFromMostRecentData = ios[i].estimatedRobotPose;
-        mostRecentTimestamp = ios[i].estimatedRobotPoseTimestamp;
+      if (latestTimestamps[i] > mostRecentTimestamp) {
+        robotPoseFromMostRecentData = latestRobotPoses[i];
+        mostRecentTimestamp = latestTimestamps[i];
       }
     }
     return robotPoseFromMostRecentData;
@@ -162,16 +366,22 @@ public class Vision extends SubsystemBase {
 
   /**
    * Returns true if the robot's pose based on vision data is within the specified threshold of the
-   * robot's pose based on the pose estimator. This method can be used to trigger a transition from
-   * driver control to automated control once confident that the estimated pose is accurate.
+   * robot's pose based on the pose estimator at the time the camera captured it. This method can be
+   * used to trigger a transition from driver control to automated control once confident that the
+   * estimated pose is accurate.
    *
    * @return true if the robot's pose based on vision data is within the specified threshold of the
    *     robot's pose based on the pose estimator
    */
   public boolean posesHaveConverged() {
     for (int i = 0; i < visionIOs.length; i++) {
-      Pose3d robotPose = ios[i].estimatedRobotPose;
-      if (odometry.getLatestPose().minus(robotPose.toPose2d()).getTranslation().getNorm()
+      if (latestTimestamps[i] == 0.0) {
+        continue;
+      }
+      // compare against odometry when the frame was captured, since the robot may have moved since
+      Pose3d robotPose = latestRobotPoses[i];
+      odometry.getPoseAt(latestTimestamps[i], poseAtCapture);
+      if (Math.hypot(robotPose.getX() - poseAtCapture[0], robotPose.getY() - poseAtCapture[1])
           < poseDifferenceThreshold.get()) {
         Logger.recordOutput("Vision/posesInLine", true);
         return true;
@@ -185,21 +395,34 @@ public class Vision extends SubsystemBase {
    * The standard deviations of the estimated pose, for use with a pose estimator. This should only
    * be used when there are targets visible.
    *
+   * @param tags The IDs of the tags used for the estimate.
+   * @param estimatedPose The estimated pose to guess standard deviations for.
+   */
+  Matrix<N3, N1> getStandardDeviations(int[] tags, Pose2d estimatedPose) {
+    return getStandardDeviations(tags, 0, tags.length, estimatedPose);
+  }
+
+  /**
+   * The standard deviations of the estimated pose, for use with a pose estimator. This should only
+   * be used when there are targets visible.
+   *
+   * @param tags An array containing the IDs of the tags used for the estimate.
+   * @param offset The index of the first tag used for the estimate.
+   * @param count The number of tags used for the estimate.
    * @param estimatedPose The estimated pose to guess standard deviations for.
    */
-  private Matrix<N3, N1> getStandardDeviations(int index, Pose2d estimatedPose) {
+  Matrix<N3, N1> getStandardDeviations(int[] tags, int offset, int count, Pose2d estimatedPose) {
     Matrix<N3, N1> estStdDevs = VecBuilder.fill(1, 1, 2);
-    int[] tags = ios[index].estimatedRobotPoseTags;
     int numTags = 0;
     double avgDist = 0;
-    for (int tag : tags) {
-      Optional<Pose3d> tagPose = layout.getTagPose(tag);
-      if (tagPose.isEmpty()) {
+    double robotX = estimatedPose.getX();
+    double robotY = estimatedPose.getY();
+    for (int index = offset; index < offset + count; index++) {
+      if (!tagPoses.hasTag(tags[index])) {
         continue;
       }
       numTags++;
-      avgDist +=
-          tagPose.get().toPose2d().getTranslation().getDistance(estimatedPose.getTranslation());
+      avgDist += tagPoses.getDistance(tags[index], robotX, robotY);
     }
     if (numTags == 0) {
       return estStdDevs;
@@ -14,4 +14,30 @@ public final class VisionConstants {
   // the maximum distance between the robot's current estimated pose and the robot's pose derived
   // from the target to consider the two poses as having converged.
   public static final double POSE_DIFFERENCE_THRESHOLD_METERS = 0.5;
+
+  // the maximum squared Mahalanobis distance between a vision pose and the odometry pose at the
+  // same time for the vision pose to be used; 11.34 is the 99% chi-squared bound for 3 degrees of
+  // freedom
+  public static final double OUTLIER_CHI_SQUARED_THRESHOLD = 11.34;
+
+  // the number of consecutive measurements from a camera that may be rejected as outliers before
+  // the next one is accepted anyway, so the pose can recover if odometry itself is wrong
+  public static final int MAX_CONSECUTIVE_OUTLIERS = 25;
+
+  // how much the odometry noise is inflated for a measurement accepted after too many outliers, so
+  // it moves the pose a large part of the way to the vision pose instead of 1 frame in 26 being
+  // applied with the usual small gain
+  public static final double OUTLIER_RECOVERY_NOISE_SCALE = 1.0e4;
+
+  // the simulated cameras, roughly an Arducam OV9281 running PhotonVision at 960 x 720
+  public static final int SIM_CAMERA_RESOLUTION_WIDTH = 960;
+  public static final int SIM_CAMERA_RESOLUTION_HEIGHT = 720;
+  public static final double SIM_CAMERA_DIAGONAL_FOV_DEGREES = 90.0;
+  public static final double SIM_CAMERA_FPS = 60.0;
+  public static final double SIM_CAMERA_AVERAGE_LATENCY_MS = 35.0;
+  public static final double SIM_CAMERA_LATENCY_STD_DEV_MS = 5.0;
+
+  // the noise added to the simulated tag corners, in pixels
+  public static final double SIM_CAMERA_AVERAGE_ERROR_PX = 0.25;
+  public static final double SIM_CAMERA_ERROR_STD_DEV_PX = 0.08;
 }
@@ -12,16 +12,28 @@ import org.littletonrobotics.junction.AutoLog;
  * Currently, the abstraction is used to simulate vision.
  */
 public interface VisionIO {
+  /**
+   * Every pose estimate received since the last update, oldest first. The tags used by each frame
+   * are stored back to back in frameTags, frameTagCounts holds how many belong to each frame. The
+   * timestamps are when each frame was captured, and the latencies how long the coprocessor took
+   * to process it.
+   *
+   * <p>receivedFrameCount counts every result received, including those without a pose estimate,
+   * and droppedFrameCount the frames which were missing between them.
+   */
   @AutoLog
   class VisionIOInputs {
-    Pose3d estimatedRobotPose = new Pose3d();
-    double estimatedRobotPoseTimestamp = 0.0;
-    int[] estimatedRobotPoseTags = new int[] {};
-    double lastCameraTimestamp = 0.0;
+    int receivedFrameCount = 0;
+    int droppedFrameCount = 0;
+    double[] frameTimestamps = new double[] {};
+    double[] framePipelineLatencySecs = new double[] {};
+    Pose3d[] frameRobotPoses = new Pose3d[] {};
+    int[] frameTagCounts = new int[] {};
+    int[] frameTags = new int[] {};
   }
 
   /**
-   * Updates the set of loggable inputs.
+   * Updates the set of loggable inputs with every frame received since the last update.
    *
    * @param inputs the inputs to update
    */
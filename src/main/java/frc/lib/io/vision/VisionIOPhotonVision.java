@@ -1,23 +1,48 @@
 package frc.lib.io.vision;
 
+import edu.wpi.first.math.geometry.Pose3d;
 import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.PubSubOption;
+import edu.wpi.first.networktables.RawSubscriber;
+import edu.wpi.first.networktables.TimestampedRaw;
 import frc.robot.FieldConstants;
+import java.util.Arrays;
 import java.util.Optional;
 import org.photonvision.EstimatedRobotPose;
 import org.photonvision.PhotonCamera;
 import org.photonvision.PhotonPoseEstimator;
 import org.photonvision.PhotonPoseEstimator.PoseStrategy;
+import org.photonvision.common.dataflow.structures.Packet;
+import org.photonvision.targeting.PhotonPipelineResult;
 
 /**
  * PhotonVision-based implementation of the VisionIO interface.
  *
+ * <p>Rather than polling the latest result, which drops every frame but one when the camera runs
+ * faster than the main loop, this subscribes to the camera's results with its own NetworkTables
+ * queue. NetworkTables fills the queue in the background and each update drains it, so every frame
+ * is estimated and passed on.
+ *
  * <p>Adapted from
  * https://github.com/PhotonVision/photonvision/blob/master/photonlib-java-examples/swervedriveposeestsim/src/main/java/frc/robot/Vision.java
  */
 public class VisionIOPhotonVision implements VisionIO {
-  private final PhotonCamera camera;
+  // Enough for a 90 fps camera to miss several loops before frames are dropped
+  private static final int MAX_QUEUED_FRAMES = 20;
+
+  // A gap between frames this many times the usual frame interval means frames were dropped, but a
+  // gap longer than the maximum is a pause (e.g. a pipeline change) rather than drops
+  private static final double DROPPED_FRAME_GAP_FACTOR = 1.5;
+  private static final double MAX_DROPPED_FRAME_GAP_SECS = 1.0;
+  private static final double FRAME_INTERVAL_ALPHA = 0.1;
+
+  protected final PhotonCamera camera;
   private final PhotonPoseEstimator photonEstimator;
+  private final RawSubscriber resultSubscriber;
+  private final Packet packet = new Packet(1);
   private double lastTimestamp = 0;
+  private double frameIntervalSecs = 0;
 
   /**
    * Creates a new VisionIOPhotonVision object.
@@ -32,32 +57,100 @@ public class VisionIOPhotonVision implements VisionIO {
             PoseStrategy.MULTI_TAG_PNP_ON_COPROCESSOR,
             camera,
             robotToCamera);
+
+    // The same topic PhotonCamera reads, but keeping every value instead of only the latest
+    this.resultSubscriber =
+        NetworkTableInstance.getDefault()
+            .getTable("photonvision")
+            .getSubTable(cameraName)
+            .getRawTopic("rawBytes")
+            .subscribe(
+                "rawBytes",
+                new byte[] {},
+                PubSubOption.periodic(0.01),
+                PubSubOption.sendAll(true),
+                PubSubOption.pollStorage(MAX_QUEUED_FRAMES));
   }
 
   /**
-   * Updates the specified VisionIOInputs object with the latest data from the camera.
+   * Updates the specified VisionIOInputs object with every frame received from the camera since
+   * the last update.
    *
-   * @param inputs the VisionIOInputs object to update with the latest data from the camera
+   * @param inputs the VisionIOInputs object to update with the frames from the camera
    */
   @Override
   public void updateInputs(VisionIOInputs inputs) {
-    Optional<EstimatedRobotPose> visionEstimate = this.photonEstimator.update();
-    double latestTimestamp = camera.getLatestResult().getTimestampSeconds();
-
-    boolean newResult = Math.abs(latestTimestamp - lastTimestamp) > 1e-5;
-    if (newResult) {
-      visionEstimate.ifPresent(
-          estimate -> {
-            inputs.estimatedRobotPose = estimate.estimatedPose;
-            inputs.estimatedRobotPoseTimestamp = estimate.timestampSeconds;
-            int[] tags = new int[estimate.targetsUsed.size()];
-            for (int i = 0; i < estimate.targetsUsed.size(); i++) {
-              tags[i] = estimate.targetsUsed.get(i).getFiducialId();
-            }
-            inputs.estimatedRobotPoseTags = tags;
-            inputs.lastCameraTimestamp = latestTimestamp;
-            lastTimestamp = latestTimestamp;
-          });
+    TimestampedRaw[] queue = resultSubscriber.readQueue();
+    double[] timestamps = new double[queue.length];
+    double[] latencies = new double[queue.length];
+    Pose3d[] poses = new Pose3d[queue.length];
+    int[] tagCounts = new int[queue.length];
+    int[] tags = new int[0];
+    int frameCount = 0;
+    int tagCount = 0;
+    int receivedCount = 0;
+    int droppedCount = 0;
+
+    for (TimestampedRaw raw : queue) {
+      packet.clear();
+      packet.setData(raw.value);
+      if (packet.getSize() < 1) {
+        continue;
+      }
+      PhotonPipelineResult result = PhotonPipelineResult.serde.unpack(packet);
+      // Same as PhotonCamera: the time the result arrived, less the camera's latency
+      double timestamp = raw.timestamp / 1e6 - result.getLatencyMillis() / 1e3;
+      if (Math.abs(timestamp - lastTimestamp) <= 1e-5) {
+        continue;
+      }
+      result.setTimestampSeconds(timestamp);
+      receivedCount++;
+      droppedCount += countDroppedFrames(timestamp - lastTimestamp);
+      lastTimestamp = timestamp;
+
+      Optional<EstimatedRobotPose> visionEstimate = photonEstimator.update(result);
+      if (visionEstimate.isEmpty()) {
+        continue;
+      }
+      EstimatedRobotPose estimate = visionEstimate.get();
+      timestamps[frameCount] = estimate.timestampSeconds;
+      latencies[frameCount] = result.getLatencyMillis() / 1e3;
+      poses[frameCount] = estimate.estimatedPose;
+      tagCounts[frameCount] = estimate.targetsUsed.size();
+      tags = Arrays.copyOf(tags, tagCount + estimate.targetsUsed.size());
+      for (int i = 0; i < estimate.targetsUsed.size(); i++) {
+        tags[tagCount++] = estimate.targetsUsed.get(i).getFiducialId();
+      }
+      frameCount++;
+    }
+
+    inputs.receivedFrameCount = receivedCount;
+    inputs.droppedFrameCount = droppedCount;
+    inputs.frameTimestamps = Arrays.copyOf(timestamps, frameCount);
+    inputs.framePipelineLatencySecs = Arrays.copyOf(latencies, frameCount);
+    inputs.frameRobotPoses = Arrays.copyOf(poses, frameCount);
+    inputs.frameTagCounts = Arrays.copyOf(tagCounts, frameCount);
+    inputs.frameTags = tags;
+  }
+
+  /**
+   * Estimates how many frames were dropped before a frame, from the gap since the previous frame
+   * and the camera's usual frame interval, which is learned from the gaps without drops.
+   *
+   * @param intervalSecs the time between the capture of the previous frame and this one
+   * @return the number of frames which are missing between them
+   */
+  private int countDroppedFrames(double intervalSecs) {
+    if (intervalSecs <= 0 || intervalSecs > MAX_DROPPED_FRAME_GAP_SECS) {
+      return 0;
+    }
+    if (frameIntervalSecs > 0 && intervalSecs > DROPPED_FRAME_GAP_FACTOR * frameIntervalSecs) {
+      return (int) Math.round(intervalSecs / frameIntervalSecs) - 1;
     }
+    frameIntervalSecs =
+        frameIntervalSecs > 0
+            ? frameIntervalSecs + FRAME_INTERVAL_ALPHA * (intervalSecs - frameIntervalSecs)
+            : intervalSecs;
+    return 0;
   }
 }
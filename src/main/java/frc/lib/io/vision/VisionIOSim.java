@@ -0,0 +1,78 @@
+package frc.lib.io.vision;
+
+import static frc.lib.io.vision.VisionConstants.*;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Transform3d;
+import frc.robot.FieldConstants;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+import org.photonvision.simulation.PhotonCameraSim;
+import org.photonvision.simulation.SimCameraProperties;
+import org.photonvision.simulation.VisionSystemSim;
+
+/**
+ * Simulated implementation of the VisionIO interface, using PhotonVision's simulation of the
+ * cameras. The simulated cameras publish their results to NetworkTables like a real coprocessor,
+ * so the frames go through the same queue and pose estimation as VisionIOPhotonVision.
+ *
+ * <p>The frame rate, latency and noise of the cameras are set in VisionConstants.
+ */
+public class VisionIOSim extends VisionIOPhotonVision {
+  // One simulated field shared by every camera
+  private static VisionSystemSim visionSim = null;
+  // The loop timestamp of the last update of the simulated field, in microseconds
+  private static long lastUpdateTimestamp = -1;
+
+  private final Supplier<Pose2d> poseSupplier;
+
+  /**
+   * Creates a new VisionIOSim object.
+   *
+   * @param cameraName the name of the simulated camera; the name must be unique
+   * @param robotToCamera the position of the camera on the robot
+   * @param poseSupplier supplies the pose of the simulated robot, which the cameras see the field
+   *     from
+   */
+  public VisionIOSim(String cameraName, Transform3d robotToCamera, Supplier<Pose2d> poseSupplier) {
+    super(cameraName, robotToCamera);
+    this.poseSupplier = poseSupplier;
+
+    if (visionSim == null) {
+      visionSim = new VisionSystemSim("main");
+      visionSim.addAprilTags(FieldConstants.aprilTags);
+    }
+
+    SimCameraProperties properties = new SimCameraProperties();
+    properties.setCalibration(
+        SIM_CAMERA_RESOLUTION_WIDTH,
+        SIM_CAMERA_RESOLUTION_HEIGHT,
+        Rotation2d.fromDegrees(SIM_CAMERA_DIAGONAL_FOV_DEGREES));
+    properties.setCalibError(SIM_CAMERA_AVERAGE_ERROR_PX, SIM_CAMERA_ERROR_STD_DEV_PX);
+    properties.setFPS(SIM_CAMERA_FPS);
+    properties.setAvgLatencyMs(SIM_CAMERA_AVERAGE_LATENCY_MS);
+    properties.setLatencyStdDevMs(SIM_CAMERA_LATENCY_STD_DEV_MS);
+    visionSim.addCamera(new PhotonCameraSim(camera, properties), robotToCamera);
+  }
+
+  /**
+   * Moves the simulated robot to the latest pose, which publishes a frame from every camera that is
+   * due one, and then updates the inputs with the frames received like a real camera. The field is
+   * only updated by the first camera each loop.
+   *
+   * @param inputs the VisionIOInputs object to update with the frames from the camera
+   */
+  @Override
+  public void updateInputs(VisionIOInputs inputs) {
+    // Updating the field renders every camera, so updating it once per camera would repeat all of
+    // that work for every camera. The logger's timestamp is the same for the whole loop, unlike the
+    // FPGA timestamp.
+    long timestamp = Logger.getTimestamp();
+    if (timestamp != lastUpdateTimestamp) {
+      lastUpdateTimestamp = timestamp;
+      visionSim.update(poseSupplier.get());
+    }
+    super.updateInputs(inputs);
+  }
+}
@@ -0,0 +1,45 @@
+package frc.lib.utils;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes allocated by the current thread between calls to {@link #start()} and {@link
+ * #stop()}. Used to check that code which runs every loop does not create garbage, since garbage
+ * collection pauses on the roboRIO cause loop overruns.
+ */
+public class AllocationCounter {
+  private static final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+
+  private long startBytes = 0;
+
+  /** Starts counting allocations made by the current thread. */
+  public void start() {
+    startBytes = getAllocatedBytes();
+  }
+
+  /**
+   * Stops counting allocations. Must be called from the thread which called {@link #start()}.
+   *
+   * @return the number of bytes allocated by the current thread since {@link #start()}, or -1 if
+   *     the JVM does not support measuring allocations
+   */
+  public long stop() {
+    if (threadMXBean == null) {
+      return -1;
+    }
+    return getAllocatedBytes() - startBytes;
+  }
+
+  private static long getAllocatedBytes() {
+    return threadMXBean == null ? 0 : threadMXBean.getCurrentThreadAllocatedBytes();
+  }
+
+  private static com.sun.management.ThreadMXBean getThreadMXBean() {
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+        && bean.isThreadAllocatedMemorySupported()) {
+      bean.setThreadAllocatedMemoryEnabled(true);
+      return bean;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,97 @@
+package frc.lib.utils;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.hardware.ParentDevice;
+import com.revrobotics.CANSparkLowLevel.PeriodicFrame;
+import com.revrobotics.CANSparkMax;
+
+/**
+ * Sets the CAN status frame rates of every device in one place, based on the signals each IO class
+ * actually reads. Frames nothing reads are slowed down or turned off, so the frames we do read (in
+ * particular the odometry signals) are not delayed behind them.
+ *
+ * <p>Also keeps an estimate of the bus load from the configured frames. Compare it to the measured
+ * utilization AdvantageKit logs under SystemStats/CANBus.
+ */
+public class CANBusBudget {
+  /** The period for frames read once per main loop. */
+  public static final int LOOP_FRAME_PERIOD_MS = 20;
+
+  /** The frequency for signals read once per main loop. */
+  public static final double LOOP_FREQUENCY_HZ = 1000.0 / LOOP_FRAME_PERIOD_MS;
+
+  // The longest period a SPARK MAX accepts, for frames nothing reads
+  private static final int UNUSED_FRAME_PERIOD_MS = 65535;
+
+  // An extended frame with 8 data bytes is 131 bits, plus up to about 20 bits of bit stuffing
+  private static final double BITS_PER_FRAME = 150.0;
+  private static final double BUS_BITS_PER_SECOND = 1.0e6;
+
+  private static double framesPerSecond = 0.0;
+
+  private CANBusBudget() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * Sets the status frame periods of a SPARK MAX. Status 0 holds the applied output and faults,
+   * status 1 the velocity, bus voltage, temperature and current, and status 2 the position. The
+   * other frames (analog sensor, alternate and duty cycle encoders) are not read by any IO class,
+   * so they are set to their longest period.
+   *
+   * @param spark the SPARK MAX to configure
+   * @param status0PeriodMs the period of status 0 in ms
+   * @param status1PeriodMs the period of status 1 in ms
+   * @param status2PeriodMs the period of status 2 in ms
+   */
+  public static void configureSparkMax(
+      CANSparkMax spark, int status0PeriodMs, int status1PeriodMs, int status2PeriodMs) {
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus0, status0PeriodMs);
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus1, status1PeriodMs);
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus2, status2PeriodMs);
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus3, UNUSED_FRAME_PERIOD_MS);
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus4, UNUSED_FRAME_PERIOD_MS);
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus5, UNUSED_FRAME_PERIOD_MS);
+    spark.setPeriodicFramePeriod(PeriodicFrame.kStatus6, UNUSED_FRAME_PERIOD_MS);
+
+    framesPerSecond +=
+        1000.0 / status0PeriodMs
+            + 1000.0 / status1PeriodMs
+            + 1000.0 / status2PeriodMs
+            + 4.0 * 1000.0 / UNUSED_FRAME_PERIOD_MS;
+  }
+
+  /**
+   * Sets the update frequency of Phoenix 6 signals. Once all of a device's signals are configured,
+   * call {@link #optimizeBusUtilization(ParentDevice)} to turn off the rest.
+   *
+   * <p>Each signal is counted as its own frame, although Phoenix may send several signals in one
+   * frame, so the estimate is an upper bound.
+   *
+   * @param frequencyHz the update frequency
+   * @param signals the signals which are read at this frequency
+   */
+  public static void configurePhoenixSignals(double frequencyHz, BaseStatusSignal... signals) {
+    BaseStatusSignal.setUpdateFrequencyForAll(frequencyHz, signals);
+    framesPerSecond += frequencyHz * signals.length;
+  }
+
+  /**
+   * Turns off every signal of a Phoenix 6 device which has not been given an update frequency.
+   *
+   * @param device the device to optimize
+   */
+  public static void optimizeBusUtilization(ParentDevice device) {
+    device.optimizeBusUtilization();
+  }
+
+  /** Returns the estimated number of status frames sent per second by the configured devices. */
+  public static double getEstimatedFramesPerSecond() {
+    return framesPerSecond;
+  }
+
+  /** Returns the estimated fraction of the bus used by the status frames of configured devices. */
+  public static double getEstimatedUtilization() {
+    return framesPerSecond * BITS_PER_FRAME / BUS_BITS_PER_SECOND;
+  }
+}
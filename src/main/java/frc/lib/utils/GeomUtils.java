@@ -1,5 +1,6 @@
 package frc.lib.utils;
 
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Transform2d;
@@ -118,4 +119,116 @@ public class GeomUtils {
     Twist2d scaled = new Twist2d(twist.dx * t, twist.dy * t, twist.dtheta * t);
     return lhs.exp(scaled);
   }
+
+  /**
+   * Interpolates between two poses given as primitives, without allocating. Behaves the same as
+   * {@link #interpolate(Pose2d, Pose2d, double)}.
+   *
+   * @param x0 The x component of the first pose
+   * @param y0 The y component of the first pose
+   * @param theta0 The rotation of the first pose in radians
+   * @param x1 The x component of the last pose
+   * @param y1 The y component of the last pose
+   * @param theta1 The rotation of the last pose in radians
+   * @param t The scale factor, between 0 and 1.
+   * @param out An array of length 3 which receives the x, y, and rotation of the interpolated pose
+   */
+  @SuppressWarnings("java:S107")
+  public static void interpolate(
+      double x0,
+      double y0,
+      double theta0,
+      double x1,
+      double y1,
+      double theta1,
+      double t,
+      double[] out) {
+    if (t <= 0) {
+      out[0] = x0;
+      out[1] = y0;
+      out[2] = theta0;
+    } else if (t >= 1) {
+      out[0] = x1;
+      out[1] = y1;
+      out[2] = theta1;
+    } else {
+      log(x0, y0, theta0, x1, y1, theta1, out);
+      exp(x0, y0, theta0, out[0] * t, out[1] * t, out[2] * t, out);
+    }
+  }
+
+  /**
+   * Applies a twist to a pose given as primitives, without allocating. Behaves the same as {@link
+   * Pose2d#exp(Twist2d)}.
+   *
+   * @param x The x component of the pose
+   * @param y The y component of the pose
+   * @param theta The rotation of the pose in radians
+   * @param dx The x component of the twist
+   * @param dy The y component of the twist
+   * @param dtheta The rotation component of the twist in radians
+   * @param out An array of length 3 which receives the x, y, and rotation of the new pose
+   */
+  @SuppressWarnings("java:S107")
+  public static void exp(
+      double x, double y, double theta, double dx, double dy, double dtheta, double[] out) {
+    double sinTheta = Math.sin(dtheta);
+    double cosTheta = Math.cos(dtheta);
+
+    double s;
+    double c;
+    if (Math.abs(dtheta) < 1E-9) {
+      s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+      c = 0.5 * dtheta;
+    } else {
+      s = sinTheta / dtheta;
+      c = (1 - cosTheta) / dtheta;
+    }
+
+    // Transform in the pose's frame, then rotate into the field frame
+    double transformX = dx * s - dy * c;
+    double transformY = dx * c + dy * s;
+    double cos = Math.cos(theta);
+    double sin = Math.sin(theta);
+    out[0] = x + transformX * cos - transformY * sin;
+    out[1] = y + transformX * sin + transformY * cos;
+    out[2] = MathUtil.angleModulus(theta + dtheta);
+  }
+
+  /**
+   * Calculates the twist between two poses given as primitives, without allocating. Behaves the
+   * same as {@link Pose2d#log(Pose2d)}.
+   *
+   * @param x0 The x component of the starting pose
+   * @param y0 The y component of the starting pose
+   * @param theta0 The rotation of the starting pose in radians
+   * @param x1 The x component of the ending pose
+   * @param y1 The y component of the ending pose
+   * @param theta1 The rotation of the ending pose in radians
+   * @param out An array of length 3 which receives the dx, dy, and dtheta of the twist
+   */
+  @SuppressWarnings("java:S107")
+  public static void log(
+      double x0, double y0, double theta0, double x1, double y1, double theta1, double[] out) {
+    // Express the ending pose relative to the starting pose
+    double cos = Math.cos(theta0);
+    double sin = Math.sin(theta0);
+    double relativeX = (x1 - x0) * cos + (y1 - y0) * sin;
+    double relativeY = -(x1 - x0) * sin + (y1 - y0) * cos;
+    double dtheta = MathUtil.angleModulus(theta1 - theta0);
+
+    double halfDtheta = dtheta / 2.0;
+    double cosMinusOne = Math.cos(dtheta) - 1;
+
+    double halfThetaByTanOfHalfDtheta;
+    if (Math.abs(cosMinusOne) < 1E-9) {
+      halfThetaByTanOfHalfDtheta = 1.0 - 1.0 / 12.0 * dtheta * dtheta;
+    } else {
+      halfThetaByTanOfHalfDtheta = -(halfDtheta * Math.sin(dtheta)) / cosMinusOne;
+    }
+
+    out[0] = relativeX * halfThetaByTanOfHalfDtheta + relativeY * halfDtheta;
+    out[1] = -relativeX * halfDtheta + relativeY * halfThetaByTanOfHalfDtheta;
+    out[2] = dtheta;
+  }
 }
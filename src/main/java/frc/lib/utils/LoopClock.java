@@ -0,0 +1,75 @@
+package frc.lib.utils;
+
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Measures the period of the main loop, so control and simulation math can use the time which
+ * actually passed instead of assuming the nominal 20 ms. Uses the AdvantageKit cycle timestamp, so
+ * the measured periods are the same in replay.
+ *
+ * <p>{@link #update()} must be called once at the start of every loop, before any subsystem reads
+ * the period.
+ */
+public class LoopClock {
+  public static final double NOMINAL_PERIOD_SECS = 0.02;
+
+  // The period is clamped, so the first loop and the loop after a long pause (e.g. a breakpoint)
+  // do not produce huge steps
+  private static final double MIN_PERIOD_SECS = 0.001;
+  private static final double MAX_PERIOD_SECS = 5.0 * NOMINAL_PERIOD_SECS;
+
+  // A loop this much longer than nominal counts as an overrun
+  private static final double OVERRUN_THRESHOLD_SECS = 0.005;
+
+  // Smoothing of the jitter statistics, about the last 50 loops (1 s)
+  private static final double STATISTICS_ALPHA = 1.0 / 50.0;
+
+  private double lastTimestamp = Double.NaN;
+  private double periodSecs = NOMINAL_PERIOD_SECS;
+  private double meanJitterSecs = 0.0;
+  private double jitterVariance = 0.0;
+  private double maxPeriodSecs = 0.0;
+  private int overrunCount = 0;
+
+  private static LoopClock instance = null;
+
+  public static LoopClock getInstance() {
+    if (instance == null) {
+      instance = new LoopClock();
+    }
+    return instance;
+  }
+
+  private LoopClock() {}
+
+  /** Measures the period since the last call and logs the jitter statistics. */
+  public void update() {
+    double timestamp = Logger.getTimestamp() / 1.0e6;
+    if (!Double.isNaN(lastTimestamp)) {
+      double measuredSecs = timestamp - lastTimestamp;
+      periodSecs = Math.max(MIN_PERIOD_SECS, Math.min(measuredSecs, MAX_PERIOD_SECS));
+
+      double jitterSecs = measuredSecs - NOMINAL_PERIOD_SECS;
+      double deviation = jitterSecs - meanJitterSecs;
+      meanJitterSecs += STATISTICS_ALPHA * deviation;
+      jitterVariance =
+          (1.0 - STATISTICS_ALPHA) * (jitterVariance + STATISTICS_ALPHA * deviation * deviation);
+      maxPeriodSecs = Math.max(maxPeriodSecs, measuredSecs);
+      if (jitterSecs > OVERRUN_THRESHOLD_SECS) {
+        overrunCount++;
+      }
+    }
+    lastTimestamp = timestamp;
+
+    Logger.recordOutput("LoopClock/PeriodSecs", periodSecs);
+    Logger.recordOutput("LoopClock/MeanJitterSecs", meanJitterSecs);
+    Logger.recordOutput("LoopClock/JitterStdDevSecs", Math.sqrt(jitterVariance));
+    Logger.recordOutput("LoopClock/MaxPeriodSecs", maxPeriodSecs);
+    Logger.recordOutput("LoopClock/OverrunCount", overrunCount);
+  }
+
+  /** Returns the measured period of the current loop, in seconds. */
+  public double getPeriodSecs() {
+    return periodSecs;
+  }
+}
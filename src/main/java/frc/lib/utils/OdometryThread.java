@@ -0,0 +1,106 @@
+package frc.lib.utils;
+
+import edu.wpi.first.wpilibj.Notifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Samples odometry signals (drive positions, turn positions, gyro yaw) on a background thread at a
+ * higher rate than the main loop. Each registered signal gets a queue which the IO classes drain
+ * into their inputs once per loop, so AdvantageKit replay sees the same samples as the robot did.
+ *
+ * <p>Readers must hold {@link #odometryLock} while draining the queues, so every queue holds the
+ * same number of samples.
+ */
+public class OdometryThread {
+  public static final double FREQUENCY_HZ = 250.0;
+  public static final Lock odometryLock = new ReentrantLock();
+
+  // Room for 0.1 s of samples, in case the main loop stalls
+  private static final int queueCapacity = 25;
+
+  private final List<DoubleSupplier> signals = new ArrayList<>();
+  private final List<SampleQueue> queues = new ArrayList<>();
+  private final List<SampleQueue> timestampQueues = new ArrayList<>();
+
+  private final Notifier notifier;
+  private boolean isStarted = false;
+
+  private static OdometryThread instance = null;
+
+  public static OdometryThread getInstance() {
+    if (instance == null) {
+      instance = new OdometryThread();
+    }
+    return instance;
+  }
+
+  private OdometryThread() {
+    notifier = new Notifier(this::periodic);
+    notifier.setName("OdometryThread");
+  }
+
+  /**
+   * Starts sampling, if any signals have been registered. Signals should all be registered before
+   * starting.
+   */
+  public void start() {
+    if (!isStarted && !timestampQueues.isEmpty()) {
+      notifier.startPeriodic(1.0 / FREQUENCY_HZ);
+      isStarted = true;
+    }
+  }
+
+  /**
+   * Registers a signal to be sampled.
+   *
+   * @param signal supplies the current value of the signal
+   * @return the queue of sampled values
+   */
+  public SampleQueue registerSignal(DoubleSupplier signal) {
+    SampleQueue queue = new SampleQueue(queueCapacity);
+    odometryLock.lock();
+    try {
+      signals.add(signal);
+      queues.add(queue);
+    } finally {
+      odometryLock.unlock();
+    }
+    return queue;
+  }
+
+  /**
+   * Creates a queue which receives the FPGA timestamp, in seconds, of every sample.
+   *
+   * @return the queue of sample timestamps
+   */
+  public SampleQueue makeTimestampQueue() {
+    SampleQueue queue = new SampleQueue(queueCapacity);
+    odometryLock.lock();
+    try {
+      timestampQueues.add(queue);
+    } finally {
+      odometryLock.unlock();
+    }
+    return queue;
+  }
+
+  private void periodic() {
+    odometryLock.lock();
+    try {
+      double timestamp = Logger.getRealTimestamp() / 1.0e6;
+      for (int i = 0; i < signals.size(); i++) {
+        queues.get(i).offer(signals.get(i).getAsDouble());
+      }
+      for (var timestampQueue : timestampQueues) {
+        timestampQueue.offer(timestamp);
+      }
+    } finally {
+      odometryLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package frc.lib.utils;
+
+import java.util.concurrent.Phaser;
+
+/**
+ * Runs a fixed set of tasks concurrently and waits for all of them to finish, for work which spends
+ * most of its time blocked in JNI calls (e.g. reading motor controllers). The first task runs on
+ * the calling thread and each other task has its own worker thread, so running the tasks does not
+ * allocate.
+ *
+ * <p>The tasks must not depend on each other. Anything which needs a deterministic order, like
+ * logging inputs, should happen after {@link #run()} returns.
+ */
+public class ParallelTaskRunner {
+  private final Runnable[] tasks;
+  // Every thread arrives once to start the tasks and once when its task is done
+  private final Phaser phaser;
+  // Anything thrown by a worker's task, rethrown on the calling thread. Workers catch everything,
+  // a worker which died would never arrive and the next run would wait forever.
+  private volatile Throwable workerException = null;
+
+  /**
+   * Creates the worker threads.
+   *
+   * @param name the name of the worker threads, followed by the task index
+   * @param tasks the tasks to run each time {@link #run()} is called
+   */
+  public ParallelTaskRunner(String name, Runnable... tasks) {
+    this.tasks = tasks;
+    phaser = new Phaser(tasks.length);
+    for (int i = 1; i < tasks.length; i++) {
+      Runnable task = tasks[i];
+      Thread worker = new Thread(() -> workerLoop(task), name + i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /** Runs every task and returns once they have all finished. Not safe to call concurrently. */
+  public void run() {
+    phaser.arriveAndAwaitAdvance();
+    try {
+      tasks[0].run();
+    } finally {
+      phaser.arriveAndAwaitAdvance();
+    }
+    Throwable exception = workerException;
+    if (exception != null) {
+      workerException = null;
+      if (exception instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      if (exception instanceof Error error) {
+        throw error;
+      }
+      throw new RuntimeException(exception);
+    }
+  }
+
+  private void workerLoop(Runnable task) {
+    while (true) {
+      phaser.arriveAndAwaitAdvance();
+      try {
+        task.run();
+      } catch (Throwable e) {
+        workerException = e;
+      } finally {
+        phaser.arriveAndAwaitAdvance();
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package frc.lib.utils;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.StatusCode;
+
+/**
+ * Refreshes every registered Phoenix 6 status signal in a single call, so the drivetrain's
+ * CANcoders and Pigeon 2 are sampled together with one JNI call instead of one per device. IO
+ * classes register the signals their main loop copies read, and just read the values in {@code
+ * updateInputs}.
+ *
+ * <p>Only for signals read on the main thread. The odometry thread refreshes its own copies.
+ */
+public class PhoenixSignalRegistry {
+  private static BaseStatusSignal[] signals = new BaseStatusSignal[0];
+
+  private PhoenixSignalRegistry() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * Registers signals to be refreshed by {@link #refreshAll()}.
+   *
+   * @param newSignals the signals to register
+   */
+  public static void register(BaseStatusSignal... newSignals) {
+    BaseStatusSignal[] allSignals = new BaseStatusSignal[signals.length + newSignals.length];
+    System.arraycopy(signals, 0, allSignals, 0, signals.length);
+    System.arraycopy(newSignals, 0, allSignals, signals.length, newSignals.length);
+    signals = allSignals;
+  }
+
+  /**
+   * Refreshes all registered signals. Should be called once per loop, before the IO classes which
+   * registered signals update their inputs.
+   *
+   * @return the status of the refresh, which is not OK if any signal failed to refresh
+   */
+  public static StatusCode refreshAll() {
+    if (signals.length == 0) {
+      return StatusCode.OK;
+    }
+    return BaseStatusSignal.refreshAll(signals);
+  }
+
+  /**
+   * Returns whether every given signal was received by the last refresh.
+   *
+   * @param deviceSignals the signals to check, usually all the registered signals of one device
+   */
+  public static boolean isAllGood(BaseStatusSignal... deviceSignals) {
+    for (var signal : deviceSignals) {
+      if (!signal.getStatus().isOK()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,26 +1,108 @@
 package frc.lib.utils;
 
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.Matrix;
 import edu.wpi.first.math.Nat;
 import edu.wpi.first.math.VecBuilder;
 import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.wpilibj.Timer;
-import java.util.ArrayList;
-import java.util.Comparator;
+import frc.robot.subsystems.drive.DriveConstants;
 import java.util.List;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
 
 public class RobotOdometry {
   private static final double historyLengthSecs = 0.3;
 
-  private Pose2d basePose = new Pose2d();
-  private Pose2d latestPose = new Pose2d();
-  private final NavigableMap<Double, PoseUpdate> updates = new TreeMap<>();
-  private final Matrix<N3, N1> q = new Matrix<>(Nat.N3(), Nat.N1());
+  // Enough room for 0.3 s of 250 Hz drive data plus vision samples from several cameras. When the
+  // buffer is full the oldest update is folded into the base pose early.
+  private static final int historyCapacity = 512;
+
+  // Index of the base pose, which is stored in the last buffer slot reserved for it
+  private static final int baseSlot = historyCapacity;
+
+  // q is the drive noise added over this much time, the main loop period it was tuned at. EKF mode
+  // scales it by the time each drive sample covers, so the covariance grows at the same rate
+  // however often the drive data is sampled.
+  private static final double qPeriodSecs = LoopClock.NOMINAL_PERIOD_SECS;
+  // The time assumed for a sample with no previous sample, and the most a single sample can cover
+  private static final double defaultSamplePeriodSecs = 1.0 / OdometryThread.FREQUENCY_HZ;
+  private static final double maxSamplePeriodSecs = 5.0 * qPeriodSecs;
+
+  private final double[] q = new double[3];
+
+  // When enabled, a full 3x3 covariance is propagated through every drive twist and used to
+  // weight each vision update, rather than the fixed gains based only on q
+  private final boolean useExtendedKalmanFilter;
+
+  // Circular buffer of sequential pose updates, ordered by timestamp. Each update holds a drive
+  // twist and at most one vision pose. Multiple vision poses at the same timestamp are stored as
+  // consecutive updates, the later ones with a zero twist.
+  private final double[] timestamps = new double[historyCapacity];
+  private final double[] twistDx = new double[historyCapacity];
+  private final double[] twistDy = new double[historyCapacity];
+  private final double[] twistDtheta = new double[historyCapacity];
+  // Multiplies q for each drive twist, above 1 when the drive data is less trustworthy
+  private final double[] driveNoiseScale = new double[historyCapacity];
+  private final boolean[] hasVision = new boolean[historyCapacity];
+  private final double[] visionX = new double[historyCapacity];
+  private final double[] visionY = new double[historyCapacity];
+  private final double[] visionTheta = new double[historyCapacity];
+  private final double[] visionStdX = new double[historyCapacity];
+  private final double[] visionStdY = new double[historyCapacity];
+  private final double[] visionStdTheta = new double[historyCapacity];
+  private final double[] visionGainX = new double[historyCapacity];
+  private final double[] visionGainY = new double[historyCapacity];
+  private final double[] visionGainTheta = new double[historyCapacity];
+  // Multiplies q just before each vision update, above 1 to trust the vision pose more than usual
+  private final double[] visionNoiseScale = new double[historyCapacity];
+  private final double[] poseX = new double[historyCapacity + 1];
+  private final double[] poseY = new double[historyCapacity + 1];
+  private final double[] poseTheta = new double[historyCapacity + 1];
+  // Upper triangle (xx, xy, xtheta, yy, ytheta, thetatheta) of each pose covariance, EKF mode only
+  private final double[] covariance = new double[(historyCapacity + 1) * 6];
+  // How much q is inflated at each pose in the default mode, the largest drive noise scale since
+  // the pose was last corrected by vision. EKF mode propagates the scaled q in the covariance.
+  private final double[] qScale = new double[historyCapacity + 1];
+  // The pose uncertainty in the default mode, as a multiple of q. It grows with the time and noise
+  // scale of every drive twist and shrinks with every vision correction, so the outlier check
+  // loosens while the robot dead reckons.
+  private final double[] uncertaintyScale = new double[historyCapacity + 1];
+  // Whether each pose has a prior, false until the pose is first reset or corrected by vision. The
+  // first vision update to a pose without a prior replaces it outright, in both modes.
+  private final boolean[] hasPrior = new boolean[historyCapacity + 1];
+  private int head = 0;
+  private int size = 0;
+  // Timestamp of the base pose, NaN after a reset
+  private double baseTimestamp = Double.NaN;
+
+  // Index of the first update whose cached pose is out of date. Updates before it do not need to
+  // be replayed.
+  private int firstDirtyIndex = 0;
+  private final double[] poseAtScratch = new double[3];
+  private final double[] poseScratch = new double[3];
+  private final double[] twistScratch = new double[3];
+  private final double[] covarianceScratch = new double[9];
+  private final double[] inverseScratch = new double[9];
+  private final double[] gainScratch = new double[9];
+
+  // The latest estimate, published for readers on other threads. Readers use optimistic reads of
+  // the stamped lock (a seqlock), so they never block the odometry updates.
+  private final StampedLock publishLock = new StampedLock();
+  private double publishedTimestamp = 0.0;
+  private double publishedX = 0.0;
+  private double publishedY = 0.0;
+  private double publishedTheta = 0.0;
+  private final double[] publishedCovariance = new double[6];
+  // Counts the publishes, so a reader can tell whether the cached pose is the latest one
+  private long publishedVersion = 0;
+
+  // The latest pose as an object, built by the first reader after each publish and shared by the
+  // rest, so polling the pose does not allocate on every call
+  private volatile CachedPose cachedPose = null;
 
   private static RobotOdometry instance = null;
 
@@ -31,75 +113,354 @@ public class RobotOdometry {
    *     of the x, y, and theta coordinates
    */
   public RobotOdometry(Matrix<N3, N1> stateStdDevs) {
+    this(stateStdDevs, false);
+  }
+
+  /**
+   * Initializes the RobotOdometry instance with the provided state standard deviations, optionally
+   * running as an extended Kalman filter.
+   *
+   * @param stateStdDevs a Matrix representing the standard deviations of the robot state in terms
+   *     of the x, y, and theta coordinates. In EKF mode these are the drive and gyro noise added
+   *     over every 20 ms of drive updates.
+   * @param useExtendedKalmanFilter true to propagate the pose covariance and weight each vision
+   *     update by its innovation covariance
+   */
+  public RobotOdometry(Matrix<N3, N1> stateStdDevs, boolean useExtendedKalmanFilter) {
     for (int i = 0; i < 3; ++i) {
-      q.set(i, 0, stateStdDevs.get(i, 0) * stateStdDevs.get(i, 0));
+      q[i] = stateStdDevs.get(i, 0) * stateStdDevs.get(i, 0);
     }
+    this.useExtendedKalmanFilter = useExtendedKalmanFilter;
+    resetCovariance(baseSlot);
+    hasPrior[baseSlot] = false;
   }
 
   public static RobotOdometry getInstance() {
     if (instance == null) {
-      instance = new RobotOdometry(VecBuilder.fill(0.003, 0.003, 0.0002));
+      instance =
+          new RobotOdometry(
+              VecBuilder.fill(0.003, 0.003, 0.0002), DriveConstants.USE_EXTENDED_KALMAN_FILTER);
     }
     return instance;
   }
 
-  /** Returns the latest robot pose based on drive and vision data. */
+  /**
+   * Returns the latest robot pose based on drive and vision data. Safe to call from any thread.
+   * Calls between two updates return the same pose object.
+   */
   public Pose2d getLatestPose() {
-    return latestPose;
+    long stamp = publishLock.tryOptimisticRead();
+    long version = publishedVersion;
+    double x = publishedX;
+    double y = publishedY;
+    double theta = publishedTheta;
+    if (!publishLock.validate(stamp)) {
+      // An update was published while reading, take the read lock instead of retrying
+      stamp = publishLock.readLock();
+      try {
+        version = publishedVersion;
+        x = publishedX;
+        y = publishedY;
+        theta = publishedTheta;
+      } finally {
+        publishLock.unlockRead(stamp);
+      }
+    }
+
+    CachedPose cached = cachedPose;
+    if (cached != null && cached.version() == version) {
+      return cached.pose();
+    }
+    // A reader which lost a race may store an older pose, the next reader sees the old version and
+    // rebuilds it
+    Pose2d pose = new Pose2d(x, y, new Rotation2d(theta));
+    cachedPose = new CachedPose(version, pose);
+    return pose;
+  }
+
+  /**
+   * Returns the latest pose estimate, with its timestamp and covariance, as a consistent snapshot.
+   * Safe to call from any thread.
+   */
+  public PoseEstimate getLatestEstimate() {
+    double[] estimate = new double[10];
+    getLatestEstimate(estimate);
+    var covariance = new Matrix<>(Nat.N3(), Nat.N3());
+    covariance.set(0, 0, estimate[4]);
+    covariance.set(0, 1, estimate[5]);
+    covariance.set(0, 2, estimate[6]);
+    covariance.set(1, 0, estimate[5]);
+    covariance.set(1, 1, estimate[7]);
+    covariance.set(1, 2, estimate[8]);
+    covariance.set(2, 0, estimate[6]);
+    covariance.set(2, 1, estimate[8]);
+    covariance.set(2, 2, estimate[9]);
+    return new PoseEstimate(
+        estimate[0], new Pose2d(estimate[1], estimate[2], new Rotation2d(estimate[3])), covariance);
+  }
+
+  /**
+   * Copies the latest pose estimate into an array without allocating. Safe to call from any
+   * thread. In the default (non-EKF) mode the covariance is not propagated, it is reported as q
+   * multiplied by the uncertainty accumulated since the pose was last corrected. The variances are
+   * infinite until the pose is first reset or corrected by vision.
+   *
+   * @param estimate an array of length 10 which receives the timestamp, x, y, rotation, and the
+   *     upper triangle of the covariance (xx, xy, xtheta, yy, ytheta, thetatheta)
+   */
+  public void getLatestEstimate(double[] estimate) {
+    long stamp = publishLock.tryOptimisticRead();
+    readPublished(estimate);
+    if (!publishLock.validate(stamp)) {
+      stamp = publishLock.readLock();
+      try {
+        readPublished(estimate);
+      } finally {
+        publishLock.unlockRead(stamp);
+      }
+    }
+  }
+
+  /**
+   * Returns the robot pose at the specified timestamp, interpolated between the buffered updates.
+   * Timestamps older than the history window return the oldest buffered pose, and timestamps newer
+   * than the latest update return the latest pose.
+   *
+   * <p>Unlike {@link #getLatestPose()}, this reads the history directly and must be called from the
+   * thread that adds drive and vision data.
+   *
+   * @param timestamp the FPGA timestamp in seconds
+   * @return the estimated pose at the timestamp
+   */
+  public Pose2d getPoseAt(double timestamp) {
+    getPoseAt(timestamp, poseAtScratch);
+    return new Pose2d(poseAtScratch[0], poseAtScratch[1], new Rotation2d(poseAtScratch[2]));
+  }
+
+  /**
+   * Calculates the robot pose at the specified timestamp without allocating. See {@link
+   * #getPoseAt(double)}.
+   *
+   * @param timestamp the FPGA timestamp in seconds
+   * @param pose an array of length 3 which receives the x, y, and rotation of the pose
+   */
+  public void getPoseAt(double timestamp, double[] pose) {
+    if (size == 0) {
+      pose[0] = poseX[baseSlot];
+      pose[1] = poseY[baseSlot];
+      pose[2] = poseTheta[baseSlot];
+      return;
+    }
+
+    int index = upperBound(timestamp);
+    int slot = slot(Math.min(index, size - 1));
+    if (index == 0 || index == size) {
+      pose[0] = poseX[slot];
+      pose[1] = poseY[slot];
+      pose[2] = poseTheta[slot];
+      return;
+    }
+
+    int prevSlot = slot(index - 1);
+    GeomUtils.interpolate(
+        poseX[prevSlot],
+        poseY[prevSlot],
+        poseTheta[prevSlot],
+        poseX[slot],
+        poseY[slot],
+        poseTheta[slot],
+        (timestamp - timestamps[prevSlot]) / (timestamps[slot] - timestamps[prevSlot]),
+        pose);
+  }
+
+  /**
+   * Calculates the squared Mahalanobis distance between a vision pose and the odometry pose at the
+   * same timestamp, using the innovation covariance S = P + R. In EKF mode P is the propagated
+   * covariance at the timestamp, otherwise it is q multiplied by the drive noise accumulated since
+   * the pose was last corrected, so the check loosens while the robot dead reckons.
+   * Under a correct noise model the result follows a chi-squared distribution with 3 degrees of
+   * freedom, so it can be used to reject outliers before they are added with {@link
+   * #addVisionData(List)}.
+   *
+   * <p>Both modes skip the check until the pose has a prior, i.e. until it is first reset or
+   * corrected by vision, so the first fix after startup is never rejected.
+   *
+   * <p>Must be called from the thread that adds drive and vision data.
+   *
+   * @param visionUpdate the vision pose to check
+   * @return the squared Mahalanobis distance, or 0 if it cannot be calculated (no history, infinite
+   *     std devs, or a pose with no prior)
+   */
+  public double getMahalanobisDistanceSquared(TimestampedVisionUpdate visionUpdate) {
+    if (size == 0) {
+      return 0.0;
+    }
+    int slot = slot(Math.min(upperBound(visionUpdate.timestamp()), size - 1));
+    if (!hasPrior[slot]) {
+      return 0.0;
+    }
+    getPoseAt(visionUpdate.timestamp(), poseAtScratch);
+
+    double pxx = q[0] * uncertaintyScale[slot];
+    double pxy = 0.0;
+    double pxt = 0.0;
+    double pyy = q[1] * uncertaintyScale[slot];
+    double pyt = 0.0;
+    double ptt = q[2] * uncertaintyScale[slot];
+    if (useExtendedKalmanFilter) {
+      int index = slot * 6;
+      pxx = covariance[index];
+      pxy = covariance[index + 1];
+      pxt = covariance[index + 2];
+      pyy = covariance[index + 3];
+      pyt = covariance[index + 4];
+      ptt = covariance[index + 5];
+    }
+    double stdX = visionUpdate.stdDevs().get(0, 0);
+    double stdY = visionUpdate.stdDevs().get(1, 0);
+    double stdTheta = visionUpdate.stdDevs().get(2, 0);
+    double[] sInverse = inverseScratch;
+    if (!invertSymmetric(
+        pxx + stdX * stdX, pxy, pxt, pyy + stdY * stdY, pyt, ptt + stdTheta * stdTheta, sInverse)) {
+      return 0.0;
+    }
+
+    double innovationX = visionUpdate.pose().getX() - poseAtScratch[0];
+    double innovationY = visionUpdate.pose().getY() - poseAtScratch[1];
+    double innovationTheta =
+        MathUtil.angleModulus(visionUpdate.pose().getRotation().getRadians() - poseAtScratch[2]);
+    double weightedX =
+        sInverse[0] * innovationX + sInverse[1] * innovationY + sInverse[2] * innovationTheta;
+    double weightedY =
+        sInverse[3] * innovationX + sInverse[4] * innovationY + sInverse[5] * innovationTheta;
+    double weightedTheta =
+        sInverse[6] * innovationX + sInverse[7] * innovationY + sInverse[8] * innovationTheta;
+    return innovationX * weightedX + innovationY * weightedY + innovationTheta * weightedTheta;
+  }
+
+  /**
+   * Returns true if a vision update at the specified timestamp falls within the buffered drive
+   * data, so {@link #addVisionData(List)} will use it. Updates older than the oldest drive data or
+   * newer than the latest are dropped, as there is no drive data to place them against.
+   *
+   * <p>Must be called from the thread that adds drive and vision data.
+   *
+   * @param timestamp the FPGA timestamp in seconds
+   * @return true if a vision update at the timestamp would be used
+   */
+  public boolean isWithinHistory(double timestamp) {
+    return size > 0 && timestamps[head] <= timestamp && timestamp <= timestamps[slot(size - 1)];
   }
 
   /** Resets the odometry to a known pose. */
   public void resetPose(Pose2d pose) {
-    basePose = pose;
-    updates.clear();
+    poseX[baseSlot] = pose.getX();
+    poseY[baseSlot] = pose.getY();
+    poseTheta[baseSlot] = pose.getRotation().getRadians();
+    resetCovariance(baseSlot);
+    baseTimestamp = Double.NaN;
+    head = 0;
+    size = 0;
+    firstDirtyIndex = 0;
     update();
   }
 
   /** Records a new drive movement. */
   public void addDriveData(double timestamp, Twist2d twist) {
-    updates.put(timestamp, new PoseUpdate(twist, new ArrayList<>()));
+    addDriveData(timestamp, twist, 1.0);
+  }
+
+  /**
+   * Records a new drive movement which is less trustworthy than usual, e.g. because a wheel is
+   * slipping or the robot was hit. The drive noise q is multiplied by the noise scale for this
+   * movement, so following vision updates are weighted more heavily.
+   *
+   * @param timestamp the FPGA timestamp in seconds
+   * @param twist the movement since the previous drive data
+   * @param noiseScale the factor to multiply q by, 1 for normal drive data
+   */
+  public void addDriveData(double timestamp, Twist2d twist, double noiseScale) {
+    // Drive data normally arrives in order, so this is an append
+    int index = upperBound(timestamp);
+    index = insert(index);
+    int slot = slot(index);
+    timestamps[slot] = timestamp;
+    twistDx[slot] = twist.dx;
+    twistDy[slot] = twist.dy;
+    twistDtheta[slot] = twist.dtheta;
+    driveNoiseScale[slot] = noiseScale;
+    hasVision[slot] = false;
     update();
   }
 
-  /** Records a new set of vision updates. */
+  /**
+   * Records a new set of vision updates. All of the updates are merged into the history before the
+   * latest pose is recalculated, so the history is replayed once, from the earliest update in the
+   * set. Sorting the set by timestamp lets each insertion start from the previous one. Updates
+   * outside the history are dropped, see {@link #isWithinHistory(double)}.
+   */
   public void addVisionData(List<TimestampedVisionUpdate> visionData) {
+    int searchStart = 0;
     for (var timestampedVisionUpdate : visionData) {
       var timestamp = timestampedVisionUpdate.timestamp();
-      var visionUpdate =
-          new VisionUpdate(timestampedVisionUpdate.pose(), timestampedVisionUpdate.stdDevs());
+      if (searchStart > size
+          || (searchStart > 0 && timestamps[slot(searchStart - 1)] >= timestamp)) {
+        // Not sorted, search the whole history
+        searchStart = 0;
+      }
+      int index = lowerBound(searchStart, timestamp);
+      searchStart = index;
 
-      if (updates.containsKey(timestamp)) {
+      if (index < size && timestamps[slot(index)] == timestamp) {
         // There was already an update at this timestamp, add to it
-        var oldVisionUpdates = updates.get(timestamp).visionUpdates();
-        oldVisionUpdates.add(visionUpdate);
-        oldVisionUpdates.sort(VisionUpdate.compareDescStdDev);
+        if (!hasVision[slot(index)]) {
+          setVision(slot(index), timestampedVisionUpdate);
+          markDirty(index);
+          continue;
+        }
+        int end = upperBound(timestamp);
+        end = insert(end);
+        int slot = slot(end);
+        timestamps[slot] = timestamp;
+        twistDx[slot] = 0.0;
+        twistDy[slot] = 0.0;
+        twistDtheta[slot] = 0.0;
+        driveNoiseScale[slot] = 1.0;
+        setVision(slot, timestampedVisionUpdate);
+
+        // Keep the vision updates at this timestamp sorted by descending std devs, so the most
+        // confident measurement is applied last
+        int i = end;
+        while (i > 0
+            && timestamps[slot(i - 1)] == timestamp
+            && stdDevSum(slot(i)) > stdDevSum(slot(i - 1))) {
+          swapVision(slot(i), slot(i - 1));
+          i--;
+        }
+        markDirty(i);
 
       } else {
         // Insert a new update
-        var prevUpdate = updates.floorEntry(timestamp);
-        var nextUpdate = updates.ceilingEntry(timestamp);
-        if (prevUpdate == null || nextUpdate == null) {
-          // Outside the range of existing data
-          return;
+        if (!isWithinHistory(timestamp)) {
+          continue;
         }
+        double prevTimestamp = timestamps[slot(index - 1)];
+        double nextTimestamp = timestamps[slot(index)];
+        index = insert(index);
+        int slot = slot(index);
+        int nextSlot = slot(index + 1);
 
         // Create partial twists (prev -> vision, vision -> next)
-        var twist0 =
-            GeomUtils.multiplyTwist(
-                nextUpdate.getValue().twist(),
-                (timestamp - prevUpdate.getKey()) / (nextUpdate.getKey() - prevUpdate.getKey()));
-        var twist1 =
-            GeomUtils.multiplyTwist(
-                nextUpdate.getValue().twist(),
-                (nextUpdate.getKey() - timestamp) / (nextUpdate.getKey() - prevUpdate.getKey()));
-
-        // Add new pose updates
-        var newVisionUpdates = new ArrayList<VisionUpdate>();
-        newVisionUpdates.add(visionUpdate);
-        newVisionUpdates.sort(VisionUpdate.compareDescStdDev);
-        updates.put(timestamp, new PoseUpdate(twist0, newVisionUpdates));
-        updates.put(
-            nextUpdate.getKey(), new PoseUpdate(twist1, nextUpdate.getValue().visionUpdates()));
+        double fraction = (timestamp - prevTimestamp) / (nextTimestamp - prevTimestamp);
+        timestamps[slot] = timestamp;
+        twistDx[slot] = twistDx[nextSlot] * fraction;
+        twistDy[slot] = twistDy[nextSlot] * fraction;
+        twistDtheta[slot] = twistDtheta[nextSlot] * fraction;
+        driveNoiseScale[slot] = driveNoiseScale[nextSlot];
+        setVision(slot, timestampedVisionUpdate);
+        twistDx[nextSlot] *= 1.0 - fraction;
+        twistDy[nextSlot] *= 1.0 - fraction;
+        twistDtheta[nextSlot] *= 1.0 - fraction;
       }
     }
 
@@ -107,76 +468,516 @@ public class RobotOdometry {
     update();
   }
 
-  /** Clears old data and calculates the latest pose. */
+  /** Calculates the latest pose and clears old data. */
   private void update() {
+    // Replay only the updates after the earliest change, starting from the last cached pose
+    for (int i = firstDirtyIndex; i < size; i++) {
+      apply(slot(i), i == 0 ? baseSlot : slot(i - 1));
+    }
+    firstDirtyIndex = size;
+    publish();
+
     // Clear old data and update base pose
-    while (updates.size() > 1
-        && updates.firstKey() < Timer.getFPGATimestamp() - historyLengthSecs) {
-      var update = updates.pollFirstEntry();
-      basePose = update.getValue().apply(basePose, q);
+    double oldestTimestamp = Timer.getFPGATimestamp() - historyLengthSecs;
+    while (size > 1 && timestamps[head] < oldestTimestamp) {
+      removeOldest();
+    }
+  }
+
+  /** Publishes the latest pose for other threads. */
+  private void publish() {
+    int slot = size == 0 ? baseSlot : slot(size - 1);
+    long stamp = publishLock.writeLock();
+    try {
+      publishedVersion++;
+      publishedTimestamp = size == 0 ? Timer.getFPGATimestamp() : timestamps[slot];
+      publishedX = poseX[slot];
+      publishedY = poseY[slot];
+      publishedTheta = poseTheta[slot];
+      if (!hasPrior[slot]) {
+        publishedCovariance[0] = Double.POSITIVE_INFINITY;
+        publishedCovariance[1] = 0.0;
+        publishedCovariance[2] = 0.0;
+        publishedCovariance[3] = Double.POSITIVE_INFINITY;
+        publishedCovariance[4] = 0.0;
+        publishedCovariance[5] = Double.POSITIVE_INFINITY;
+      } else if (useExtendedKalmanFilter) {
+        System.arraycopy(covariance, slot * 6, publishedCovariance, 0, 6);
+      } else {
+        publishedCovariance[0] = q[0] * uncertaintyScale[slot];
+        publishedCovariance[1] = 0.0;
+        publishedCovariance[2] = 0.0;
+        publishedCovariance[3] = q[1] * uncertaintyScale[slot];
+        publishedCovariance[4] = 0.0;
+        publishedCovariance[5] = q[2] * uncertaintyScale[slot];
+      }
+    } finally {
+      publishLock.unlockWrite(stamp);
     }
+  }
 
-    // Update latest pose
-    latestPose = basePose;
-    for (var updateEntry : updates.entrySet()) {
-      latestPose = updateEntry.getValue().apply(latestPose, q);
+  /** Reads the published estimate, must be validated against the publish lock. */
+  private void readPublished(double[] estimate) {
+    estimate[0] = publishedTimestamp;
+    estimate[1] = publishedX;
+    estimate[2] = publishedY;
+    estimate[3] = publishedTheta;
+    for (int i = 0; i < 6; i++) {
+      estimate[4 + i] = publishedCovariance[i];
     }
   }
 
+  /** Marks the update at the specified index, and every update after it, as needing a replay. */
+  private void markDirty(int index) {
+    firstDirtyIndex = Math.min(firstDirtyIndex, index);
+  }
+
   /**
-   * Represents a sequential update to a pose estimate, with a twist (drive movement) and list of
-   * vision updates.
+   * Applies a single update, the drive twist followed by the vision pose (if any), to the cached
+   * pose in the previous slot and caches the result. Runs on primitives so a replay does not
+   * allocate.
    */
-  private record PoseUpdate(Twist2d twist, ArrayList<VisionUpdate> visionUpdates) {
-    public Pose2d apply(Pose2d lastPose, Matrix<N3, N1> q) {
-      // Apply drive twist
-      var pose = lastPose.exp(twist);
+  private void apply(int slot, int prevSlot) {
+    // Apply drive twist
+    double x = poseX[prevSlot];
+    double y = poseY[prevSlot];
+    GeomUtils.exp(
+        x,
+        y,
+        poseTheta[prevSlot],
+        twistDx[slot],
+        twistDy[slot],
+        twistDtheta[slot],
+        poseScratch);
+    hasPrior[slot] = hasPrior[prevSlot];
+    if (useExtendedKalmanFilter) {
+      predictCovariance(slot, prevSlot, poseScratch[0] - x, poseScratch[1] - y);
+    } else {
+      qScale[slot] = Math.max(qScale[prevSlot], driveNoiseScale[slot]);
+      uncertaintyScale[slot] =
+          uncertaintyScale[prevSlot] + driveNoiseScale[slot] * getQPeriods(slot, prevSlot);
+    }
 
-      // Apply vision updates
-      for (var visionUpdate : visionUpdates) {
-        // Calculate Kalman gains based on std devs
-        // (https://github.com/wpilibsuite/allwpilib/blob/main/wpimath/src/main/java/edu/wpi/first/math/estimator/)
-        Matrix<N3, N3> visionK = new Matrix<>(Nat.N3(), Nat.N3());
-        var r = new double[3];
-        for (int i = 0; i < 3; ++i) {
-          r[i] = visionUpdate.stdDevs().get(i, 0) * visionUpdate.stdDevs().get(i, 0);
+    if (hasVision[slot]) {
+      if (!hasPrior[slot]) {
+        initializeFromVision(slot);
+      } else if (useExtendedKalmanFilter) {
+        if (visionNoiseScale[slot] != 1.0) {
+          int index = slot * 6;
+          covariance[index] += q[0] * (visionNoiseScale[slot] - 1.0);
+          covariance[index + 3] += q[1] * (visionNoiseScale[slot] - 1.0);
+          covariance[index + 5] += q[2] * (visionNoiseScale[slot] - 1.0);
+        }
+        correctCovariance(slot);
+      } else {
+        if (visionNoiseScale[slot] != 1.0) {
+          qScale[slot] = Math.max(qScale[slot], visionNoiseScale[slot]);
+          uncertaintyScale[slot] = Math.max(uncertaintyScale[slot], visionNoiseScale[slot]);
         }
-        for (int row = 0; row < 3; ++row) {
-          if (q.get(row, 0) == 0.0) {
-            visionK.set(row, row, 0.0);
-          } else {
-            visionK.set(
-                row, row, q.get(row, 0) / (q.get(row, 0) + Math.sqrt(q.get(row, 0) * r[row])));
-          }
+        double gainX = visionGainX[slot];
+        double gainY = visionGainY[slot];
+        double gainTheta = visionGainTheta[slot];
+        if (qScale[slot] != 1.0) {
+          // The drive data since the last correction was less trustworthy, so the cached gains are
+          // too small
+          gainX = calculateGain(0, visionStdX[slot], qScale[slot]);
+          gainY = calculateGain(1, visionStdY[slot], qScale[slot]);
+          gainTheta = calculateGain(2, visionStdTheta[slot], qScale[slot]);
+
+          // The correction removes its share of the extra uncertainty, like P = (I - K) P
+          qScale[slot] = 1.0 + (qScale[slot] - 1.0) * (1.0 - Math.max(gainX, gainY));
         }
+        double gain = Math.max(gainX, gainY);
+        uncertaintyScale[slot] = gain >= 1.0 ? 0.0 : uncertaintyScale[slot] * (1.0 - gain);
 
         // Calculate twist between current and vision pose
-        var visionTwist = pose.log(visionUpdate.pose());
+        GeomUtils.log(
+            poseScratch[0],
+            poseScratch[1],
+            poseScratch[2],
+            visionX[slot],
+            visionY[slot],
+            visionTheta[slot],
+            twistScratch);
+
+        // Scale by the (diagonal) Kalman gains and apply
+        GeomUtils.exp(
+            poseScratch[0],
+            poseScratch[1],
+            poseScratch[2],
+            gainX * twistScratch[0],
+            gainY * twistScratch[1],
+            gainTheta * twistScratch[2],
+            poseScratch);
+      }
+    }
+
+    poseX[slot] = poseScratch[0];
+    poseY[slot] = poseScratch[1];
+    poseTheta[slot] = poseScratch[2];
+  }
+
+  /**
+   * Replaces the pose in the scratch array, which has no prior, with the vision pose of the
+   * specified slot. This is the limit of both corrections as P goes to infinity, K = I and P = R,
+   * without relying on arithmetic with infinities. Updates with infinite std devs are ignored.
+   */
+  private void initializeFromVision(int slot) {
+    double rx = visionStdX[slot] * visionStdX[slot];
+    double ry = visionStdY[slot] * visionStdY[slot];
+    double rt = visionStdTheta[slot] * visionStdTheta[slot];
+    if (!Double.isFinite(rx) || !Double.isFinite(ry) || !Double.isFinite(rt)) {
+      return;
+    }
+    poseScratch[0] = visionX[slot];
+    poseScratch[1] = visionY[slot];
+    poseScratch[2] = visionTheta[slot];
+    hasPrior[slot] = true;
+
+    int index = slot * 6;
+    covariance[index] = rx;
+    covariance[index + 1] = 0.0;
+    covariance[index + 2] = 0.0;
+    covariance[index + 3] = ry;
+    covariance[index + 4] = 0.0;
+    covariance[index + 5] = rt;
+    qScale[slot] = 1.0;
+    // The default mode has a single uncertainty for every axis, use the larger of the translation
+    // variances like the gains do
+    uncertaintyScale[slot] = Math.max(rx / q[0], ry / q[1]);
+  }
+
+  /**
+   * Propagates the covariance through a drive twist, P = F P F^T + Q, where Q is q multiplied by
+   * the twist's noise scale and the time it covers. The twist moved the robot by (deltaX, deltaY)
+   * in the field frame, so the Jacobian of the motion with respect to the previous pose is
+   * [[1, 0, -deltaY], [0, 1, deltaX], [0, 0, 1]].
+   */
+  private void predictCovariance(int slot, int prevSlot, double deltaX, double deltaY) {
+    int prev = prevSlot * 6;
+    double xx = covariance[prev];
+    double xy = covariance[prev + 1];
+    double xt = covariance[prev + 2];
+    double yy = covariance[prev + 3];
+    double yt = covariance[prev + 4];
+    double tt = covariance[prev + 5];
+    double a = -deltaY;
+    double b = deltaX;
+
+    int index = slot * 6;
+    double scale = driveNoiseScale[slot] * getQPeriods(slot, prevSlot);
+    covariance[index] = xx + 2.0 * a * xt + a * a * tt + q[0] * scale;
+    covariance[index + 1] = xy + a * yt + b * xt + a * b * tt;
+    covariance[index + 2] = xt + a * tt;
+    covariance[index + 3] = yy + 2.0 * b * yt + b * b * tt + q[1] * scale;
+    covariance[index + 4] = yt + b * tt;
+    covariance[index + 5] = tt + q[2] * scale;
+  }
+
+  /**
+   * Returns the time between the update in the specified slot and the previous one, as a multiple
+   * of the period q is defined over.
+   */
+  private double getQPeriods(int slot, int prevSlot) {
+    double prevTimestamp = prevSlot == baseSlot ? baseTimestamp : timestamps[prevSlot];
+    double periodSecs =
+        Double.isNaN(prevTimestamp)
+            ? defaultSamplePeriodSecs
+            : MathUtil.clamp(timestamps[slot] - prevTimestamp, 0.0, maxSamplePeriodSecs);
+    return periodSecs / qPeriodSecs;
+  }
+
+  /**
+   * Corrects the pose in the scratch array and the covariance of the specified slot with its vision
+   * pose, using the full innovation covariance S = P + R and gain K = P S^-1.
+   */
+  private void correctCovariance(int slot) {
+    double rx = visionStdX[slot] * visionStdX[slot];
+    double ry = visionStdY[slot] * visionStdY[slot];
+    double rt = visionStdTheta[slot] * visionStdTheta[slot];
+    if (!Double.isFinite(rx) || !Double.isFinite(ry) || !Double.isFinite(rt)) {
+      // Infinite measurement noise, the update carries no information
+      return;
+    }
+
+    // Expand the covariance into a full row-major matrix
+    double[] p = covarianceScratch;
+    int index = slot * 6;
+    p[0] = covariance[index];
+    p[1] = covariance[index + 1];
+    p[2] = covariance[index + 2];
+    p[3] = p[1];
+    p[4] = covariance[index + 3];
+    p[5] = covariance[index + 4];
+    p[6] = p[2];
+    p[7] = p[5];
+    p[8] = covariance[index + 5];
+
+    // Invert the innovation covariance
+    double[] sInverse = inverseScratch;
+    if (!invertSymmetric(p[0] + rx, p[1], p[2], p[4] + ry, p[5], p[8] + rt, sInverse)) {
+      return;
+    }
+
+    // K = P S^-1
+    double[] k = gainScratch;
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 3; col++) {
+        k[row * 3 + col] =
+            p[row * 3] * sInverse[col]
+                + p[row * 3 + 1] * sInverse[3 + col]
+                + p[row * 3 + 2] * sInverse[6 + col];
+      }
+    }
+
+    // Innovation between the vision pose and the predicted pose, in the field frame
+    double innovationX = visionX[slot] - poseScratch[0];
+    double innovationY = visionY[slot] - poseScratch[1];
+    double innovationTheta = MathUtil.angleModulus(visionTheta[slot] - poseScratch[2]);
+    poseScratch[0] += k[0] * innovationX + k[1] * innovationY + k[2] * innovationTheta;
+    poseScratch[1] += k[3] * innovationX + k[4] * innovationY + k[5] * innovationTheta;
+    poseScratch[2] =
+        MathUtil.angleModulus(
+            poseScratch[2] + k[6] * innovationX + k[7] * innovationY + k[8] * innovationTheta);
+
+    // P = (I - K) P, stored back as its upper triangle
+    covariance[index] = p[0] - (k[0] * p[0] + k[1] * p[3] + k[2] * p[6]);
+    covariance[index + 1] = p[1] - (k[0] * p[1] + k[1] * p[4] + k[2] * p[7]);
+    covariance[index + 2] = p[2] - (k[0] * p[2] + k[1] * p[5] + k[2] * p[8]);
+    covariance[index + 3] = p[4] - (k[3] * p[1] + k[4] * p[4] + k[5] * p[7]);
+    covariance[index + 4] = p[5] - (k[3] * p[2] + k[4] * p[5] + k[5] * p[8]);
+    covariance[index + 5] = p[8] - (k[6] * p[2] + k[7] * p[5] + k[8] * p[8]);
+  }
+
+  /**
+   * Inverts a symmetric positive definite 3x3 matrix, given by its upper triangle, with its
+   * cofactors. Returns false if the matrix is not invertible.
+   */
+  @SuppressWarnings("java:S107")
+  private static boolean invertSymmetric(
+      double s00, double s01, double s02, double s11, double s12, double s22, double[] inverse) {
+    double c00 = s11 * s22 - s12 * s12;
+    double c01 = s02 * s12 - s01 * s22;
+    double c02 = s01 * s12 - s11 * s02;
+    double c11 = s00 * s22 - s02 * s02;
+    double c12 = s01 * s02 - s00 * s12;
+    double c22 = s00 * s11 - s01 * s01;
+    double det = s00 * c00 + s01 * c01 + s02 * c02;
+    if (!(det > 0.0) || !Double.isFinite(det)) {
+      return false;
+    }
+    inverse[0] = c00 / det;
+    inverse[1] = c01 / det;
+    inverse[2] = c02 / det;
+    inverse[3] = inverse[1];
+    inverse[4] = c11 / det;
+    inverse[5] = c12 / det;
+    inverse[6] = inverse[2];
+    inverse[7] = inverse[5];
+    inverse[8] = c22 / det;
+    return true;
+  }
+
+  /** Resets the covariance of the specified slot to the drive noise, q, for a known pose. */
+  private void resetCovariance(int slot) {
+    hasPrior[slot] = true;
+    qScale[slot] = 1.0;
+    uncertaintyScale[slot] = 1.0;
+    int index = slot * 6;
+    covariance[index] = q[0];
+    covariance[index + 1] = 0.0;
+    covariance[index + 2] = 0.0;
+    covariance[index + 3] = q[1];
+    covariance[index + 4] = 0.0;
+    covariance[index + 5] = q[2];
+  }
 
-        // Multiply by Kalman gain matrix
-        var twistMatrix =
-            visionK.times(VecBuilder.fill(visionTwist.dx, visionTwist.dy, visionTwist.dtheta));
+  /**
+   * Calculates the Kalman gain for one axis of a vision update, based on its std dev. The gain
+   * matrix is diagonal, so each axis is independent.
+   * (https://github.com/wpilibsuite/allwpilib/blob/main/wpimath/src/main/java/edu/wpi/first/math/estimator/)
+   */
+  private double calculateGain(int row, double stdDev) {
+    return calculateGain(row, stdDev, 1.0);
+  }
+
+  /** Calculates the Kalman gain for one axis of a vision update, with q multiplied by a scale. */
+  private double calculateGain(int row, double stdDev, double scale) {
+    double scaledQ = q[row] * scale;
+    if (scaledQ == 0.0) {
+      return 0.0;
+    }
+    return scaledQ / (scaledQ + Math.sqrt(scaledQ * stdDev * stdDev));
+  }
+
+  /** Returns the buffer slot of the update at the specified index, where 0 is the oldest. */
+  private int slot(int index) {
+    int slot = head + index;
+    return slot >= historyCapacity ? slot - historyCapacity : slot;
+  }
 
-        // Apply twist
-        pose =
-            pose.exp(
-                new Twist2d(twistMatrix.get(0, 0), twistMatrix.get(1, 0), twistMatrix.get(2, 0)));
+  /**
+   * Returns the index of the first update, at or after the start index, with a timestamp not less
+   * than the specified one.
+   */
+  private int lowerBound(int start, double timestamp) {
+    int low = start;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[slot(mid)] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** Returns the index of the first update with a timestamp greater than the specified one. */
+  private int upperBound(double timestamp) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[slot(mid)] <= timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
       }
+    }
+    return low;
+  }
 
-      return pose;
+  /**
+   * Opens an empty update at the specified index, shifting newer updates back by one and marking
+   * them for replay. Returns the index of the new update, which moves forward by one if the oldest
+   * update had to be dropped to make room.
+   */
+  private int insert(int index) {
+    if (size == historyCapacity) {
+      removeOldest();
+      index = Math.max(index - 1, 0);
+    }
+    for (int i = size; i > index; i--) {
+      copy(slot(i - 1), slot(i));
+    }
+    size++;
+    markDirty(index);
+    return index;
+  }
+
+  /** Folds the oldest update into the base pose and removes it from the buffer. */
+  private void removeOldest() {
+    if (firstDirtyIndex > 0) {
+      firstDirtyIndex--;
+    } else {
+      apply(head, baseSlot);
     }
+    copyPose(head, baseSlot);
+    baseTimestamp = timestamps[head];
+    head = slot(1);
+    size--;
   }
 
-  /** Represents a single vision pose with associated standard deviations. */
-  public record VisionUpdate(Pose2d pose, Matrix<N3, N1> stdDevs) {
-    public static final Comparator<VisionUpdate> compareDescStdDev =
-        (VisionUpdate a, VisionUpdate b) -> {
-          return -Double.compare(
-              a.stdDevs().get(0, 0) + a.stdDevs().get(1, 0),
-              b.stdDevs().get(0, 0) + b.stdDevs().get(1, 0));
-        };
+  private void copy(int from, int to) {
+    timestamps[to] = timestamps[from];
+    twistDx[to] = twistDx[from];
+    twistDy[to] = twistDy[from];
+    twistDtheta[to] = twistDtheta[from];
+    driveNoiseScale[to] = driveNoiseScale[from];
+    hasVision[to] = hasVision[from];
+    visionX[to] = visionX[from];
+    visionY[to] = visionY[from];
+    visionTheta[to] = visionTheta[from];
+    visionStdX[to] = visionStdX[from];
+    visionStdY[to] = visionStdY[from];
+    visionStdTheta[to] = visionStdTheta[from];
+    visionGainX[to] = visionGainX[from];
+    visionGainY[to] = visionGainY[from];
+    visionGainTheta[to] = visionGainTheta[from];
+    visionNoiseScale[to] = visionNoiseScale[from];
+    copyPose(from, to);
+  }
+
+  private void copyPose(int from, int to) {
+    poseX[to] = poseX[from];
+    poseY[to] = poseY[from];
+    poseTheta[to] = poseTheta[from];
+    qScale[to] = qScale[from];
+    uncertaintyScale[to] = uncertaintyScale[from];
+    hasPrior[to] = hasPrior[from];
+    System.arraycopy(covariance, from * 6, covariance, to * 6, 6);
+  }
+
+  private void setVision(int slot, TimestampedVisionUpdate visionUpdate) {
+    hasVision[slot] = true;
+    visionX[slot] = visionUpdate.pose().getX();
+    visionY[slot] = visionUpdate.pose().getY();
+    visionTheta[slot] = visionUpdate.pose().getRotation().getRadians();
+    visionStdX[slot] = visionUpdate.stdDevs().get(0, 0);
+    visionStdY[slot] = visionUpdate.stdDevs().get(1, 0);
+    visionStdTheta[slot] = visionUpdate.stdDevs().get(2, 0);
+    visionNoiseScale[slot] = visionUpdate.noiseScale();
+
+    // The gains only depend on the std devs, so calculate them once rather than on every replay
+    visionGainX[slot] = calculateGain(0, visionStdX[slot]);
+    visionGainY[slot] = calculateGain(1, visionStdY[slot]);
+    visionGainTheta[slot] = calculateGain(2, visionStdTheta[slot]);
   }
 
-  /** Represents a single vision pose with a timestamp and associated standard deviations. */
-  public record TimestampedVisionUpdate(double timestamp, Pose2d pose, Matrix<N3, N1> stdDevs) {}
+  private void swapVision(int a, int b) {
+    double temp;
+    temp = visionX[a];
+    visionX[a] = visionX[b];
+    visionX[b] = temp;
+    temp = visionY[a];
+    visionY[a] = visionY[b];
+    visionY[b] = temp;
+    temp = visionTheta[a];
+    visionTheta[a] = visionTheta[b];
+    visionTheta[b] = temp;
+    temp = visionStdX[a];
+    visionStdX[a] = visionStdX[b];
+    visionStdX[b] = temp;
+    temp = visionStdY[a];
+    visionStdY[a] = visionStdY[b];
+    visionStdY[b] = temp;
+    temp = visionStdTheta[a];
+    visionStdTheta[a] = visionStdTheta[b];
+    visionStdTheta[b] = temp;
+    temp = visionGainX[a];
+    visionGainX[a] = visionGainX[b];
+    visionGainX[b] = temp;
+    temp = visionGainY[a];
+    visionGainY[a] = visionGainY[b];
+    visionGainY[b] = temp;
+    temp = visionGainTheta[a];
+    visionGainTheta[a] = visionGainTheta[b];
+    visionGainTheta[b] = temp;
+    temp = visionNoiseScale[a];
+    visionNoiseScale[a] = visionNoiseScale[b];
+    visionNoiseScale[b] = temp;
+  }
+
+  private double stdDevSum(int slot) {
+    return visionStdX[slot] + visionStdY[slot];
+  }
+
+  /** Represents a pose estimate with its timestamp and covariance. */
+  public record PoseEstimate(double timestamp, Pose2d pose, Matrix<N3, N3> covariance) {}
+
+  private record CachedPose(long version, Pose2d pose) {}
+
+  /**
+   * Represents a single vision pose with a timestamp and associated standard deviations. The noise
+   * scale multiplies q just before the update is applied, so a scale above 1 makes odometry trust
+   * the vision pose more than its std devs alone would, e.g. to recover when odometry is wrong.
+   */
+  public record TimestampedVisionUpdate(
+      double timestamp, Pose2d pose, Matrix<N3, N1> stdDevs, double noiseScale) {
+    public TimestampedVisionUpdate(double timestamp, Pose2d pose, Matrix<N3, N1> stdDevs) {
+      this(timestamp, pose, stdDevs, 1.0);
+    }
+  }
 }
@@ -0,0 +1,64 @@
+package frc.lib.utils;
+
+/**
+ * A fixed size queue of the samples taken by the odometry thread. The samples are stored as
+ * primitives, so sampling at 250 Hz does not box every value and draining them does not go through
+ * a stream.
+ *
+ * <p>Not thread safe, the odometry thread and the readers must both hold {@link
+ * OdometryThread#odometryLock}.
+ */
+public class SampleQueue {
+  private final double[] values;
+  private int head = 0;
+  private int size = 0;
+
+  SampleQueue(int capacity) {
+    values = new double[capacity];
+  }
+
+  /** Adds a sample to the end of the queue, or drops it if the queue is full. */
+  void offer(double value) {
+    if (size == values.length) {
+      return;
+    }
+    int index = head + size;
+    values[index >= values.length ? index - values.length : index] = value;
+    size++;
+  }
+
+  /** Returns the number of samples in the queue. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns a sample from the queue.
+   *
+   * @param index the index of the sample, where 0 is the oldest
+   */
+  public double get(int index) {
+    int slot = head + index;
+    return values[slot >= values.length ? slot - values.length : slot];
+  }
+
+  /**
+   * Removes every sample from the queue and returns them in a new array, oldest first. The array is
+   * new on every call because it becomes an AdvantageKit input, and the logger keeps a reference
+   * to each logged array until it has been written.
+   */
+  public double[] drain() {
+    double[] samples = new double[size];
+    for (int i = 0; i < size; i++) {
+      samples[i] = get(i);
+    }
+    clear();
+    return samples;
+  }
+
+  /** Removes every sample from the queue. */
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+}
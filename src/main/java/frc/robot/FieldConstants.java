@@ -8,6 +8,7 @@ import edu.wpi.first.math.geometry.Rotation3d;
 import edu.wpi.first.math.geometry.Translation2d;
 import edu.wpi.first.math.geometry.Translation3d;
 import edu.wpi.first.math.util.Units;
+import frc.lib.io.vision.AprilTagPoseTable;
 import java.util.List;
 
 /**
@@ -292,4 +293,7 @@ public final class FieldConstants {
                       new Rotation3d()))),
           fieldLength,
           fieldWidth);
+
+  // The tag poses from the layout as primitives, for lookups which should not allocate
+  public static final AprilTagPoseTable aprilTagPoses = new AprilTagPoseTable(aprilTags);
 }
@@ -8,6 +8,9 @@ import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.PowerDistribution;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
+import frc.lib.utils.AllocationCounter;
+import frc.lib.utils.CANBusBudget;
+import frc.lib.utils.LoopClock;
 import java.io.IOException;
 import org.littletonrobotics.junction.LogFileUtil;
 import org.littletonrobotics.junction.LoggedRobot;
@@ -25,6 +28,7 @@ import org.littletonrobotics.junction.wpilog.WPILOGWriter;
 public class Robot extends LoggedRobot {
   private Command autonomousCommand;
   private RobotContainer robotContainer;
+  private final AllocationCounter allocationCounter = new AllocationCounter();
 
   /**
    * This function is run when the robot is first started up and should be used for any
@@ -99,7 +103,11 @@ public class Robot extends LoggedRobot {
     // finished or interrupted commands, and running subsystem periodic() methods.
     // This must be called from the robot's periodic block in order for anything in
     // the Command-based framework to work.
+    allocationCounter.start();
+    LoopClock.getInstance().update();
     CommandScheduler.getInstance().run();
+    Logger.recordOutput("RobotPeriodic/AllocatedBytes", allocationCounter.stop());
+    Logger.recordOutput("CAN/EstimatedUtilization", CANBusBudget.getEstimatedUtilization());
   }
 
   /** This function is called once when the robot is disabled. */
@@ -19,10 +19,12 @@ import frc.lib.io.gyro3d.GyroIO;
 import frc.lib.io.gyro3d.GyroPigeon2;
 import frc.lib.io.vision.Vision;
 import frc.lib.io.vision.VisionIOPhotonVision;
+import frc.lib.io.vision.VisionIOSim;
 import frc.lib.leds.LEDManager;
 import frc.lib.utils.AllianceFlipUtil;
 import frc.robot.commands.drive.DriveWithDpad;
 import frc.robot.commands.drive.DriveWithJoysticks;
+import frc.robot.commands.drive.WheelRadiusCharacterization;
 import frc.robot.commands.leds.LedRainbowCMD;
 import frc.robot.subsystems.drive.Drive;
 import frc.robot.subsystems.drive.ModuleIO;
@@ -47,6 +49,16 @@ public class RobotContainer {
   private Vision vision;
   private boolean isRobotOriented = true; // Workaround, change if needed
 
+  // Camera positions on the robot
+  private static final Transform3d FRONT_CAMERA =
+      new Transform3d(
+          new Translation3d(6 * 0.01, -10 * 0.01 - Units.inchesToMeters(2.0), 42 * 0.01),
+          new Rotation3d());
+  private static final Transform3d RIGHT_CAMERA =
+      new Transform3d(
+          new Translation3d(2 * 0.01, -12 * 0.01 - Units.inchesToMeters(2.0), 42 * 0.01),
+          new Rotation3d(0, 0, -0.5 * Math.PI));
+
   // Controller
   private final CommandXboxController driverController = new CommandXboxController(0);
   private final CommandXboxController operatorController = new CommandXboxController(1);
@@ -60,19 +72,11 @@ public class RobotContainer {
     if (Constants.getMode() != Constants.Mode.REPLAY) {
       switch (Constants.getRobot()) {
         case ROBOT_2023 -> {
-          Transform3d front =
-              new Transform3d(
-                  new Translation3d(6 * 0.01, -10 * 0.01 - Units.inchesToMeters(2.0), 42 * 0.01),
-                  new Rotation3d());
-          Transform3d right =
-              new Transform3d(
-                  new Translation3d(2 * 0.01, -12 * 0.01 - Units.inchesToMeters(2.0), 42 * 0.01),
-                  new Rotation3d(0, 0, -0.5 * Math.PI));
           vision =
               new Vision(
                   List.of(
-                          new VisionIOPhotonVision("front", front),
-                          new VisionIOPhotonVision("right", right))
+                          new VisionIOPhotonVision("front", FRONT_CAMERA),
+                          new VisionIOPhotonVision("right", RIGHT_CAMERA))
                       .toArray(new frc.lib.io.vision.VisionIO[0]));
           drive =
               new Drive(
@@ -99,6 +103,13 @@ public class RobotContainer {
                   new ModuleIOSim(),
                   new ModuleIOSim(),
                   new ModuleIOSim());
+          // The simulated cameras see the field from the true pose, not the estimate they correct
+          vision =
+              new Vision(
+                  List.of(
+                          new VisionIOSim("front", FRONT_CAMERA, drive::getSimulatedPose),
+                          new VisionIOSim("right", RIGHT_CAMERA, drive::getSimulatedPose))
+                      .toArray(new frc.lib.io.vision.VisionIO[0]));
         }
       }
     }
@@ -132,6 +143,7 @@ public class RobotContainer {
                     drive::runCharacterizationVolts,
                     drive::getCharacterizationVelocity))
             .andThen(this::configureButtonBindings));
+    autoChooser.addOption("Wheel Radius Characterization", new WheelRadiusCharacterization(drive));
 
     // Configure the button bindings
     configureButtonBindings();
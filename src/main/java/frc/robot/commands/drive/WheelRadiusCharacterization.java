@@ -0,0 +1,159 @@
+package frc.robot.commands.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.filter.SlewRateLimiter;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Filesystem;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.Command;
+import frc.robot.subsystems.drive.Drive;
+import frc.robot.subsystems.drive.DriveConstants;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Spins the robot in place and measures the effective wheel radius, by comparing the rotation
+ * measured by the gyro to the distance the wheels report.
+ *
+ * <p>While spinning in place, each wheel travels along a circle with the drive base radius, so the
+ * arc length is the drive base radius times the gyro rotation. The wheels report the same arc
+ * length as their rotation in radians times the wheel radius. Each loop adds one (wheel rotation,
+ * arc length) sample to a least squares fit through the origin, so the estimate is available at
+ * any time without storing the samples.
+ *
+ * <p>The fit assumes the configured track width is correct, a spin test cannot tell a larger wheel
+ * from a narrower robot. The result is logged and written to {@value #RESULT_FILE_NAME} in the
+ * deploy directory when the command ends. Needs a connected gyro, so it does nothing useful in
+ * simulation.
+ */
+public class WheelRadiusCharacterization extends Command {
+  private static final String RESULT_FILE_NAME = "wheel_calibration.json";
+  private static final double OMEGA_RADIANS_PER_SECOND = 1.0;
+  private static final double RAMP_RATE_RADIANS_PER_SECOND_SQUARED = 0.5;
+  // Samples are skipped until the modules have turned and the robot is up to speed
+  private static final double START_DELAY_SECS = 3.0;
+  private static final int MIN_SAMPLES = 50;
+
+  private final Drive drive;
+  private final SlewRateLimiter omegaLimiter =
+      new SlewRateLimiter(RAMP_RATE_RADIANS_PER_SECOND_SQUARED);
+  private final Timer timer = new Timer();
+  private final double nominalWheelRadius = DriveConstants.WHEEL_DIAMETER / 2.0;
+  private final double[] lastDistancesMeters = new double[4];
+  private double lastGyroYawRadians;
+
+  // Running sums of the least squares fit, x is the wheel rotation and y the arc length
+  private double sumXX;
+  private double sumXY;
+  private double totalGyroRotationRadians;
+  private int sampleCount;
+
+  public WheelRadiusCharacterization(Drive drive) {
+    this.drive = drive;
+    addRequirements(drive);
+  }
+
+  @Override
+  public void initialize() {
+    omegaLimiter.reset(0.0);
+    timer.restart();
+    sumXX = 0.0;
+    sumXY = 0.0;
+    totalGyroRotationRadians = 0.0;
+    sampleCount = 0;
+    resetLastMeasurements();
+  }
+
+  @Override
+  public void execute() {
+    drive.runVelocity(
+        new ChassisSpeeds(0.0, 0.0, omegaLimiter.calculate(OMEGA_RADIANS_PER_SECOND)));
+
+    if (timer.get() < START_DELAY_SECS || !drive.isGyroConnected()) {
+      resetLastMeasurements();
+      return;
+    }
+
+    double[] distancesMeters = drive.getModuleDistancesMeters();
+    double wheelRotationRadians = 0.0;
+    for (int i = 0; i < 4; i++) {
+      wheelRotationRadians +=
+          Math.abs(distancesMeters[i] - lastDistancesMeters[i]) / nominalWheelRadius;
+      lastDistancesMeters[i] = distancesMeters[i];
+    }
+    wheelRotationRadians /= 4.0;
+
+    double gyroYawRadians = drive.getGyroYaw().getRadians();
+    double gyroRotationRadians =
+        Math.abs(MathUtil.angleModulus(gyroYawRadians - lastGyroYawRadians));
+    lastGyroYawRadians = gyroYawRadians;
+    double arcLengthMeters = gyroRotationRadians * drive.getDriveBaseRadius();
+
+    sumXX += wheelRotationRadians * wheelRotationRadians;
+    sumXY += wheelRotationRadians * arcLengthMeters;
+    totalGyroRotationRadians += gyroRotationRadians;
+    sampleCount++;
+
+    Logger.recordOutput("Drive/WheelRadiusCharacterization/SampleCount", sampleCount);
+    Logger.recordOutput(
+        "Drive/WheelRadiusCharacterization/TotalGyroRotationRadians", totalGyroRotationRadians);
+    Logger.recordOutput(
+        "Drive/WheelRadiusCharacterization/WheelRadiusMeters", getWheelRadiusMeters());
+  }
+
+  @Override
+  public void end(boolean interrupted) {
+    drive.stop();
+    timer.stop();
+    if (sampleCount < MIN_SAMPLES) {
+      DriverStation.reportWarning(
+          "Wheel radius characterization needs at least "
+              + MIN_SAMPLES
+              + " samples with the gyro connected, got "
+              + sampleCount,
+          false);
+      return;
+    }
+
+    // The results are already logged every loop, so they are only written to the result file
+    writeResult(getWheelRadiusMeters());
+  }
+
+  /** Returns the least squares estimate of the wheel radius in meters. */
+  private double getWheelRadiusMeters() {
+    return sumXX > 0.0 ? sumXY / sumXX : nominalWheelRadius;
+  }
+
+  private void resetLastMeasurements() {
+    System.arraycopy(drive.getModuleDistancesMeters(), 0, lastDistancesMeters, 0, 4);
+    lastGyroYawRadians = drive.getGyroYaw().getRadians();
+  }
+
+  private void writeResult(double wheelRadiusMeters) {
+    String result =
+        String.format(
+            "{%n"
+                + "  \"wheelRadiusMeters\": %.6f,%n"
+                + "  \"wheelDiameterMeters\": %.6f,%n"
+                + "  \"configuredWheelDiameterMeters\": %.6f,%n"
+                + "  \"driveBaseRadiusMeters\": %.6f,%n"
+                + "  \"sampleCount\": %d,%n"
+                + "  \"gyroRotationRadians\": %.6f%n"
+                + "}%n",
+            wheelRadiusMeters,
+            wheelRadiusMeters * 2.0,
+            DriveConstants.WHEEL_DIAMETER,
+            drive.getDriveBaseRadius(),
+            sampleCount,
+            totalGyroRotationRadians);
+    Path path = Filesystem.getDeployDirectory().toPath().resolve(RESULT_FILE_NAME);
+    try {
+      Files.writeString(path, result);
+    } catch (IOException e) {
+      DriverStation.reportWarning("Could not write " + path, e.getStackTrace());
+    }
+  }
+}
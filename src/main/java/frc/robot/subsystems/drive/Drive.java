@@ -6,18 +6,23 @@ import com.pathplanner.lib.util.HolonomicPathFollowerConfig;
 import com.pathplanner.lib.util.PIDConstants;
 import com.pathplanner.lib.util.PathPlannerLogging;
 import com.pathplanner.lib.util.ReplanningConfig;
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.*;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
-import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.kinematics.SwerveModuleState;
 import edu.wpi.first.wpilibj.DriverStation;
-import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import frc.lib.io.gyro3d.GyroIO;
 import frc.lib.io.gyro3d.GyroIOInputsAutoLogged;
+import frc.lib.utils.AllocationCounter;
 import frc.lib.utils.LocalADStarAK;
+import frc.lib.utils.LoopClock;
+import frc.lib.utils.OdometryThread;
+import frc.lib.utils.ParallelTaskRunner;
+import frc.lib.utils.PhoenixSignalRegistry;
 import frc.lib.utils.RobotOdometry;
+import frc.robot.Constants;
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
 
@@ -26,11 +31,66 @@ public class Drive extends SubsystemBase {
   private final GyroIO gyroIO;
   private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
   private final Module[] modules = new Module[4]; // FL, FR, BL, BR
+  private final ParallelTaskRunner moduleInputsRunner;
+
+  private static final SwerveModuleState[] emptyStates = new SwerveModuleState[] {};
+
+  // Slip and collision detection. A module whose velocity is this far from the best fit chassis
+  // motion is slipping, and a gyro yaw rate this far from the wheels' is a collision (or the whole
+  // robot sliding). Odometry trusts the drive data less while either is happening.
+  private static final double SLIP_VELOCITY_THRESHOLD = 0.4; // meters/sec
+  private static final double COLLISION_YAW_RATE_THRESHOLD = 0.6; // radians/sec
+  private static final double SLIP_NOISE_SCALE = 10.0;
+  private static final double COLLISION_NOISE_SCALE = 100.0;
+
+  private static final Translation2d[] moduleTranslations =
+      new Translation2d[] {
+        new Translation2d(DriveConstants.TRACK_WIDTH_X / 2.0, DriveConstants.TRACK_WIDTH_Y / 2.0),
+        new Translation2d(DriveConstants.TRACK_WIDTH_X / 2.0, -DriveConstants.TRACK_WIDTH_Y / 2.0),
+        new Translation2d(-DriveConstants.TRACK_WIDTH_X / 2.0, DriveConstants.TRACK_WIDTH_Y / 2.0),
+        new Translation2d(-DriveConstants.TRACK_WIDTH_X / 2.0, -DriveConstants.TRACK_WIDTH_Y / 2.0)
+      };
+  private static final Rotation2d[] xHeadings = new Rotation2d[4];
+
+  static {
+    for (int i = 0; i < 4; i++) {
+      xHeadings[i] = moduleTranslations[i].getAngle();
+    }
+  }
+
+  // Forward kinematics, the pseudo-inverse of the inverse kinematics matrix, as row-major 3 x 8.
+  // Applied by hand rather than through SwerveDriveKinematics so the loop does not allocate.
+  private static final double[] forwardKinematics =
+      SwerveKinematics.calculateForwardKinematics(moduleTranslations);
 
-  private final SwerveDriveKinematics kinematics =
-      new SwerveDriveKinematics(getModuleTranslations());
   private final RobotOdometry odometry;
-  private Rotation2d lastGyroRotation = new Rotation2d();
+  // The gyro yaw the last odometry twist ended at, advanced by the wheel rotation for samples
+  // without a gyro reading so the next gyro delta does not count that rotation again
+  private double lastGyroYawRad = 0.0;
+  private final double[] lastModulePositionsMeters = new double[4];
+  private final Twist2d twist = new Twist2d();
+  // The true pose in simulation, where the wheels never slip, so only the drive data is used
+  private Pose2d simulatedPose = new Pose2d();
+  private boolean isSlipping = false;
+  private boolean isColliding = false;
+  private int slipCount = 0;
+  private int collisionCount = 0;
+
+  // Preallocated state reused every loop, see runVelocity() and getRobotRelativeSpeeds()
+  private final Rotation2d[] moduleHeadings = new Rotation2d[4];
+  private final SwerveModuleState[] desiredStates = new SwerveModuleState[4];
+  private final SwerveModuleState[] setpointStates = new SwerveModuleState[4];
+  private final SwerveModuleState[] optimizedSetpointStates = new SwerveModuleState[4];
+  private final SwerveModuleState[] measuredStates = new SwerveModuleState[4];
+  private final double[] moduleVectors = new double[8];
+  private final double[] chassisMotion = new double[3];
+  private final double[] moduleDistancesMeters = new double[4];
+  private final ChassisSpeeds robotRelativeSpeeds = new ChassisSpeeds();
+  private final ChassisSpeeds stoppedSpeeds = new ChassisSpeeds();
+  private final SwerveSetpointGenerator setpointGenerator =
+      new SwerveSetpointGenerator(
+          DriveConstants.MAX_LINEAR_ACCELERATION, DriveConstants.MAX_STEERING_VELOCITY);
+  private final AllocationCounter allocationCounter = new AllocationCounter();
 
   public Drive(
       GyroIO gyroIO,
@@ -43,13 +103,30 @@ public class Drive extends SubsystemBase {
     modules[1] = new Module(frModuleIO, 1);
     modules[2] = new Module(blModuleIO, 2);
     modules[3] = new Module(brModuleIO, 3);
+    if (DriveConstants.PARALLEL_MODULE_IO && Constants.getMode() == Constants.Mode.REAL) {
+      moduleInputsRunner =
+          new ParallelTaskRunner(
+              "ModuleIO",
+              modules[0]::updateInputs,
+              modules[1]::updateInputs,
+              modules[2]::updateInputs,
+              modules[3]::updateInputs);
+    } else {
+      moduleInputsRunner = null;
+    }
+    for (int i = 0; i < 4; i++) {
+      moduleHeadings[i] = new Rotation2d();
+      desiredStates[i] = new SwerveModuleState();
+      setpointStates[i] = new SwerveModuleState();
+    }
 
     odometry = RobotOdometry.getInstance();
+    OdometryThread.getInstance().start();
     Pathfinding.setPathfinder(new LocalADStarAK());
     AutoBuilder.configureHolonomic(
         this::getPose,
         this::setPose,
-        () -> kinematics.toChassisSpeeds(getModuleStates()),
+        this::getRobotRelativeSpeeds,
         this::runVelocity,
         new HolonomicPathFollowerConfig(
             new PIDConstants(5.0, 0.0, 0.0), // Translation PID constants
@@ -72,40 +149,138 @@ public class Drive extends SubsystemBase {
   }
 
   public void periodic() {
-    gyroIO.updateInputs(gyroInputs);
+    allocationCounter.start();
+
+    // Hold the lock so the odometry thread cannot add samples part way through
+    OdometryThread.odometryLock.lock();
+    try {
+      // Sample every CANcoder and the Pigeon 2 together, in one call
+      PhoenixSignalRegistry.refreshAll();
+      gyroIO.updateInputs(gyroInputs);
+      if (moduleInputsRunner != null) {
+        // Only the IO reads run concurrently, the inputs are still logged in order below
+        moduleInputsRunner.run();
+      } else {
+        for (var module : modules) {
+          module.updateInputs();
+        }
+      }
+    } finally {
+      OdometryThread.odometryLock.unlock();
+    }
     Logger.processInputs("Drive/Gyro", gyroInputs);
     for (var module : modules) {
       module.periodic();
     }
 
-    // Stop moving when disabled
+    // Stop moving when disabled, and start the setpoints from the measured states when enabled
     if (DriverStation.isDisabled()) {
       for (var module : modules) {
         module.stop();
       }
+      setpointGenerator.reset(getModuleStates());
     }
     // Log empty setpoint states when disabled
     if (DriverStation.isDisabled()) {
-      Logger.recordOutput("SwerveStates/Setpoints", new SwerveModuleState[] {});
-      Logger.recordOutput("SwerveStates/SetpointsOptimized", new SwerveModuleState[] {});
+      Logger.recordOutput("SwerveStates/Desired", emptyStates);
+      Logger.recordOutput("SwerveStates/Setpoints", emptyStates);
+      Logger.recordOutput("SwerveStates/SetpointsOptimized", emptyStates);
     }
 
-    // Update odometry
+    // Update odometry, once for every sample taken by the odometry thread
+    double noiseScale = updateSlipDetection();
+    double[] sampleTimestamps = modules[0].getOdometryTimestamps();
+    for (int sample = 0; sample < sampleTimestamps.length; sample++) {
+      for (int i = 0; i < 4; i++) {
+        double positionMeters = modules[i].getOdometryDrivePositionsMeters()[sample];
+        Rotation2d angle = modules[i].getOdometryTurnPositions()[sample];
+        double deltaMeters = positionMeters - lastModulePositionsMeters[i];
+        moduleVectors[i * 2] = deltaMeters * angle.getCos();
+        moduleVectors[i * 2 + 1] = deltaMeters * angle.getSin();
+        lastModulePositionsMeters[i] = positionMeters;
+      }
+      // The twist represents the motion of the robot since the last
+      // sample in x, y, and theta based only on the modules,
+      // without the gyro. The gyro is always disconnected in simulation.
+      SwerveKinematics.toChassisMotion(forwardKinematics, moduleVectors, chassisMotion);
+      twist.dx = chassisMotion[0];
+      twist.dy = chassisMotion[1];
+      twist.dtheta = chassisMotion[2];
+      if (gyroInputs.connected && sample < gyroInputs.odometryYawPositions.length) {
+        double gyroYawRad = gyroInputs.odometryYawPositions[sample].getRadians();
+        twist.dtheta = MathUtil.angleModulus(gyroYawRad - lastGyroYawRad);
+        lastGyroYawRad = gyroYawRad;
+      } else {
+        lastGyroYawRad = MathUtil.angleModulus(lastGyroYawRad + twist.dtheta);
+      }
+      // RobotOdometry copies the twist, so it is safe to reuse
+      odometry.addDriveData(sampleTimestamps[sample], twist, noiseScale);
+      if (Constants.getMode() == Constants.Mode.SIM) {
+        simulatedPose = simulatedPose.exp(twist);
+      }
+    }
+    if (Constants.getMode() == Constants.Mode.SIM) {
+      Logger.recordOutput("Odometry/SimulatedPose", simulatedPose);
+    }
 
-    // Update odometry
-    SwerveModulePosition[] wheelDeltas = new SwerveModulePosition[4];
+    Logger.recordOutput("Drive/AllocatedBytes", allocationCounter.stop());
+  }
+
+  /**
+   * Checks the measured module velocities for wheel slip and collisions, and logs the events.
+   * Slipping is detected by fitting a chassis motion to the module velocities, a collision by
+   * comparing the gyro yaw rate to the fitted rotation.
+   *
+   * @return the factor to multiply the odometry drive noise by for this loop's samples
+   */
+  private double updateSlipDetection() {
     for (int i = 0; i < 4; i++) {
-      wheelDeltas[i] = modules[i].getPositionDelta();
+      SwerveModuleState state = modules[i].getState();
+      moduleVectors[i * 2] = state.speedMetersPerSecond * state.angle.getCos();
+      moduleVectors[i * 2 + 1] = state.speedMetersPerSecond * state.angle.getSin();
     }
-    // The twist represents the motion of the robot since the last
-    // loop cycle in x, y, and theta based only on the modules,
-    // without the gyro. The gyro is always disconnected in simulation.
-    var twist = kinematics.toTwist2d(wheelDeltas);
-    if (gyroInputs.connected) {
-      twist = new Twist2d(twist.dx, twist.dy, gyroInputs.yaw.minus(lastGyroRotation).getRadians());
-      lastGyroRotation = gyroInputs.yaw;
+    SwerveKinematics.toChassisMotion(forwardKinematics, moduleVectors, chassisMotion);
+
+    // How far each module's velocity is from the velocity the fitted chassis motion implies
+    double maxModuleErrorMetersPerSec = 0.0;
+    for (int i = 0; i < 4; i++) {
+      double fitVx = chassisMotion[0] - chassisMotion[2] * moduleTranslations[i].getY();
+      double fitVy = chassisMotion[1] + chassisMotion[2] * moduleTranslations[i].getX();
+      maxModuleErrorMetersPerSec =
+          Math.max(
+              maxModuleErrorMetersPerSec,
+              Math.hypot(moduleVectors[i * 2] - fitVx, moduleVectors[i * 2 + 1] - fitVy));
     }
-    odometry.addDriveData(Timer.getFPGATimestamp(), twist);
+    double yawRateErrorRadPerSec =
+        gyroInputs.connected ? gyroInputs.yawRate - chassisMotion[2] : 0.0;
+
+    boolean wasSlipping = isSlipping;
+    boolean wasColliding = isColliding;
+    isSlipping = maxModuleErrorMetersPerSec > SLIP_VELOCITY_THRESHOLD;
+    isColliding = Math.abs(yawRateErrorRadPerSec) > COLLISION_YAW_RATE_THRESHOLD;
+    if (isSlipping && !wasSlipping) {
+      slipCount++;
+    }
+    if (isColliding && !wasColliding) {
+      collisionCount++;
+    }
+
+    double noiseScale = 1.0;
+    if (isSlipping) {
+      noiseScale = SLIP_NOISE_SCALE;
+    }
+    if (isColliding) {
+      noiseScale = COLLISION_NOISE_SCALE;
+    }
+
+    Logger.recordOutput("Drive/Slip/MaxModuleErrorMetersPerSec", maxModuleErrorMetersPerSec);
+    Logger.recordOutput("Drive/Slip/YawRateErrorRadPerSec", yawRateErrorRadPerSec);
+    Logger.recordOutput("Drive/Slip/IsSlipping", isSlipping);
+    Logger.recordOutput("Drive/Slip/IsColliding", isColliding);
+    Logger.recordOutput("Drive/Slip/SlipCount", slipCount);
+    Logger.recordOutput("Drive/Slip/CollisionCount", collisionCount);
+    Logger.recordOutput("Drive/Slip/OdometryNoiseScale", noiseScale);
+    return noiseScale;
   }
 
   /**
@@ -114,26 +289,34 @@ public class Drive extends SubsystemBase {
    * @param speeds Speeds in meters/sec
    */
   public void runVelocity(ChassisSpeeds speeds) {
-    // Calculate module setpoints
-    ChassisSpeeds discreteSpeeds = ChassisSpeeds.discretize(speeds, 0.02);
-    SwerveModuleState[] setpointStates = kinematics.toSwerveModuleStates(discreteSpeeds);
-    SwerveDriveKinematics.desaturateWheelSpeeds(setpointStates, DriveConstants.MAX_LINEAR_SPEED);
+    // Calculate module setpoints, the same as ChassisSpeeds.discretize() followed by
+    // SwerveDriveKinematics.toSwerveModuleStates() but reusing the desired states. Module angles
+    // are only new objects while a module's heading changes. Uses the measured loop period, the
+    // best guess for how long these setpoints will be applied.
+    double periodSecs = LoopClock.getInstance().getPeriodSecs();
+    SwerveKinematics.discretize(speeds, periodSecs, chassisMotion);
+    SwerveKinematics.toModuleStates(
+        chassisMotion, moduleTranslations, moduleHeadings, desiredStates);
+    SwerveDriveKinematics.desaturateWheelSpeeds(desiredStates, DriveConstants.MAX_LINEAR_SPEED);
+
+    // Limit the module acceleration and steering velocity
+    setpointGenerator.generate(desiredStates, setpointStates, periodSecs);
 
     // Send setpoints to modules
-    SwerveModuleState[] optimizedSetpointStates = new SwerveModuleState[4];
     for (int i = 0; i < 4; i++) {
       // The module returns the optimized state, useful for logging
       optimizedSetpointStates[i] = modules[i].runSetpoint(setpointStates[i]);
     }
 
     // Log setpoint states
+    Logger.recordOutput("SwerveStates/Desired", desiredStates);
     Logger.recordOutput("SwerveStates/Setpoints", setpointStates);
     Logger.recordOutput("SwerveStates/SetpointsOptimized", optimizedSetpointStates);
   }
 
   /** Stops the drive. */
   public void stop() {
-    runVelocity(new ChassisSpeeds());
+    runVelocity(stoppedSpeeds);
   }
 
   /**
@@ -141,11 +324,7 @@ public class Drive extends SubsystemBase {
    * return to their normal orientations the next time a nonzero velocity is requested.
    */
   public void stopWithX() {
-    Rotation2d[] headings = new Rotation2d[4];
-    for (int i = 0; i < 4; i++) {
-      headings[i] = getModuleTranslations()[i].getAngle();
-    }
-    kinematics.resetHeadings(headings);
+    System.arraycopy(xHeadings, 0, moduleHeadings, 0, 4);
     stop();
   }
 
@@ -154,6 +333,7 @@ public class Drive extends SubsystemBase {
     for (int i = 0; i < 4; i++) {
       modules[i].runCharacterization(volts);
     }
+    setpointGenerator.reset(getModuleStates());
   }
 
   /** Returns the average drive velocity in meters/sec. */
@@ -165,14 +345,33 @@ public class Drive extends SubsystemBase {
     return driveVelocityAverage / 4.0;
   }
 
-  /** Returns the module states (turn angles and drive velocities) for all the modules. */
+  /**
+   * Returns the module states (turn angles and drive velocities) for all the modules. The array is
+   * reused by the next call.
+   */
   @AutoLogOutput(key = "SwerveStates/Measured")
   private SwerveModuleState[] getModuleStates() {
-    SwerveModuleState[] states = new SwerveModuleState[4];
     for (int i = 0; i < 4; i++) {
-      states[i] = modules[i].getState();
+      measuredStates[i] = modules[i].getState();
     }
-    return states;
+    return measuredStates;
+  }
+
+  /**
+   * Returns the measured robot relative chassis speeds, for the path follower. The speeds are
+   * reused by the next call.
+   */
+  public ChassisSpeeds getRobotRelativeSpeeds() {
+    for (int i = 0; i < 4; i++) {
+      SwerveModuleState state = modules[i].getState();
+      moduleVectors[i * 2] = state.speedMetersPerSecond * state.angle.getCos();
+      moduleVectors[i * 2 + 1] = state.speedMetersPerSecond * state.angle.getSin();
+    }
+    SwerveKinematics.toChassisMotion(forwardKinematics, moduleVectors, chassisMotion);
+    robotRelativeSpeeds.vxMetersPerSecond = chassisMotion[0];
+    robotRelativeSpeeds.vyMetersPerSecond = chassisMotion[1];
+    robotRelativeSpeeds.omegaRadiansPerSecond = chassisMotion[2];
+    return robotRelativeSpeeds;
   }
 
   /** Returns the current odometry pose. */
@@ -181,15 +380,25 @@ public class Drive extends SubsystemBase {
     return odometry.getLatestPose();
   }
 
+  /**
+   * Returns the true pose of the simulated robot, from the drive data alone without any vision
+   * corrections. Only updated in simulation.
+   */
+  public Pose2d getSimulatedPose() {
+    return simulatedPose;
+  }
+
   /** Returns the current odometry rotation. */
   public Rotation2d getRotation() {
     return odometry.getLatestPose().getRotation();
   }
 
+  /** Returns the pitch rate from the gyro in radians/sec. */
   public double getPitchVelocity() {
     return gyroInputs.pitchRate;
   }
 
+  /** Returns the roll rate from the gyro in radians/sec. */
   public double getRollVelocity() {
     return gyroInputs.rollRate;
   }
@@ -198,18 +407,40 @@ public class Drive extends SubsystemBase {
     return gyroInputs.rotation3d;
   }
 
+  /** Returns whether the gyro is connected. It is always disconnected in simulation. */
+  public boolean isGyroConnected() {
+    return gyroInputs.connected;
+  }
+
+  /** Returns the yaw measured by the gyro, without any odometry or vision corrections. */
+  public Rotation2d getGyroYaw() {
+    return gyroInputs.yaw;
+  }
+
+  /**
+   * Returns the distance each module's wheel has driven in meters, using the configured wheel
+   * diameter. The array is reused by the next call.
+   */
+  public double[] getModuleDistancesMeters() {
+    for (int i = 0; i < 4; i++) {
+      moduleDistancesMeters[i] = modules[i].getPosition().distanceMeters;
+    }
+    return moduleDistancesMeters;
+  }
+
+  /** Returns the distance from the center of the robot to each module in meters. */
+  public double getDriveBaseRadius() {
+    return moduleTranslations[0].getNorm();
+  }
+
   /** Resets the current odometry pose. */
   public void setPose(Pose2d pose) {
     odometry.resetPose(pose);
+    simulatedPose = pose;
   }
 
-  /** Returns an array of module translations. */
+  /** Returns an array of module translations. The array is shared and must not be modified. */
   public Translation2d[] getModuleTranslations() {
-    return new Translation2d[] {
-      new Translation2d(DriveConstants.TRACK_WIDTH_X / 2.0, DriveConstants.TRACK_WIDTH_Y / 2.0),
-      new Translation2d(DriveConstants.TRACK_WIDTH_X / 2.0, -DriveConstants.TRACK_WIDTH_Y / 2.0),
-      new Translation2d(-DriveConstants.TRACK_WIDTH_X / 2.0, DriveConstants.TRACK_WIDTH_Y / 2.0),
-      new Translation2d(-DriveConstants.TRACK_WIDTH_X / 2.0, -DriveConstants.TRACK_WIDTH_Y / 2.0)
-    };
+    return moduleTranslations;
   }
 }
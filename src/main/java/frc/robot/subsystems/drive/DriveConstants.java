@@ -7,17 +7,33 @@ import frc.robot.Constants;
 import frc.robot.constants.controls.GearRatio;
 
 public class DriveConstants {
+  /**
+   * Whether the four modules' IO is read concurrently on the real robot, to overlap the time spent
+   * blocked in REV and CTRE JNI calls. Off until it has been measured on the robot.
+   */
+  public static final boolean PARALLEL_MODULE_IO = false;
+
+  /**
+   * Whether odometry runs as an extended Kalman filter, propagating the pose covariance through
+   * every drive sample, rather than with fixed vision gains.
+   */
+  public static final boolean USE_EXTENDED_KALMAN_FILTER = false;
+
   public static final double TRACK_WIDTH_X;
   public static final double TRACK_WIDTH_Y;
   public static final double MAX_LINEAR_SPEED;
+  public static final double MAX_LINEAR_ACCELERATION;
+  public static final double MAX_STEERING_VELOCITY;
   public static final double WHEEL_DIAMETER;
   public static final Rotation2d[] ABSOLUTE_ANGLE_OFFSET;
   public static final GearRatio DRIVE_GEAR_RATIO;
   public static final GearRatio TURN_GEAR_RATIO;
   public static final TunableNumber DRIVE_KS;
   public static final TunableNumber DRIVE_KV;
+  public static final TunableNumber DRIVE_KP;
   public static final TunableNumber TURN_KP;
   public static final TunableNumber TURN_KD;
+  public static final TunableNumber TURN_KS;
 
   static {
     switch (Constants.getRobot()) {
@@ -25,6 +41,8 @@ public class DriveConstants {
         TRACK_WIDTH_X = Units.inchesToMeters(12.75 * 2);
         TRACK_WIDTH_Y = Units.inchesToMeters(9.25 * 2);
         MAX_LINEAR_SPEED = Units.feetToMeters(14.5);
+        MAX_LINEAR_ACCELERATION = 8.0;
+        MAX_STEERING_VELOCITY = Units.degreesToRadians(720.0);
         WHEEL_DIAMETER = Units.inchesToMeters(4);
         ABSOLUTE_ANGLE_OFFSET =
             new Rotation2d[] {
@@ -37,13 +55,17 @@ public class DriveConstants {
         TURN_GEAR_RATIO = new GearRatio(12.8, 1);
         DRIVE_KS = new TunableNumber("Drive/Module/DriveKS", 0.49385);
         DRIVE_KV = new TunableNumber("Drive/Module/DriveKV", 2.60818);
+        DRIVE_KP = new TunableNumber("Drive/Module/DriveKP", 0.0);
         TURN_KP = new TunableNumber("Drive/Module/TurnKP", 3.256);
         TURN_KD = new TunableNumber("Drive/Module/TurnKD", 0.05);
+        TURN_KS = new TunableNumber("Drive/Module/TurnKS", 0.0);
       }
       case ROBOT_2024A -> {
         TRACK_WIDTH_X = Units.inchesToMeters(12.75 * 2);
         TRACK_WIDTH_Y = Units.inchesToMeters(9.25 * 2);
         MAX_LINEAR_SPEED = Units.feetToMeters(14.5);
+        MAX_LINEAR_ACCELERATION = 8.0;
+        MAX_STEERING_VELOCITY = Units.degreesToRadians(720.0);
         WHEEL_DIAMETER = Units.inchesToMeters(4);
         ABSOLUTE_ANGLE_OFFSET =
             new Rotation2d[] {
@@ -56,34 +78,44 @@ public class DriveConstants {
         TURN_GEAR_RATIO = new GearRatio(12.8, 1);
         DRIVE_KS = new TunableNumber("Drive/Module/DriveKS", 0.49385);
         DRIVE_KV = new TunableNumber("Drive/Module/DriveKV", 2.60818);
+        DRIVE_KP = new TunableNumber("Drive/Module/DriveKP", 0.0);
         TURN_KP = new TunableNumber("Drive/Module/TurnKP", 3.256);
         TURN_KD = new TunableNumber("Drive/Module/TurnKD", 0.05);
+        TURN_KS = new TunableNumber("Drive/Module/TurnKS", 0.0);
       }
       case ROBOT_SIMBOT -> {
         TRACK_WIDTH_X = 0.65;
         TRACK_WIDTH_Y = 0.65;
         MAX_LINEAR_SPEED = Units.feetToMeters(14.5);
+        MAX_LINEAR_ACCELERATION = 10.0;
+        MAX_STEERING_VELOCITY = Units.degreesToRadians(720.0);
         WHEEL_DIAMETER = Units.inchesToMeters(2);
         ABSOLUTE_ANGLE_OFFSET = new Rotation2d[] {new Rotation2d()};
         DRIVE_GEAR_RATIO = new GearRatio(6.75, 1);
         TURN_GEAR_RATIO = new GearRatio(12.8, 1);
         DRIVE_KS = new TunableNumber("Drive/Module/DriveKS", 0.15343);
         DRIVE_KV = new TunableNumber("Drive/Module/DriveKV", 5.27611);
+        DRIVE_KP = new TunableNumber("Drive/Module/DriveKP", 0.1);
         TURN_KP = new TunableNumber("Drive/Module/TurnKP", 23.0);
         TURN_KD = new TunableNumber("Drive/Module/TurnKD", 0.0);
+        TURN_KS = new TunableNumber("Drive/Module/TurnKS", 0.0);
       }
       default -> {
         TRACK_WIDTH_X = 0;
         TRACK_WIDTH_Y = 0;
         MAX_LINEAR_SPEED = 0;
+        MAX_LINEAR_ACCELERATION = 0;
+        MAX_STEERING_VELOCITY = 0;
         WHEEL_DIAMETER = 0;
         ABSOLUTE_ANGLE_OFFSET = new Rotation2d[] {};
         DRIVE_GEAR_RATIO = new GearRatio();
         TURN_GEAR_RATIO = new GearRatio();
         DRIVE_KS = new TunableNumber("Drive/Module/DriveKS");
         DRIVE_KV = new TunableNumber("Drive/Module/DriveKV");
+        DRIVE_KP = new TunableNumber("Drive/Module/DriveKP");
         TURN_KP = new TunableNumber("Drive/Module/TurnKP");
         TURN_KD = new TunableNumber("Drive/Module/TurnKD");
+        TURN_KS = new TunableNumber("Drive/Module/TurnKS");
       }
     }
   }
@@ -1,6 +1,6 @@
 package frc.robot.subsystems.drive;
 
-import edu.wpi.first.math.controller.PIDController;
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.controller.SimpleMotorFeedforward;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
@@ -8,33 +8,53 @@ import edu.wpi.first.math.kinematics.SwerveModuleState;
 import org.littletonrobotics.junction.Logger;
 
 public class Module {
+  // The turn error below which the static friction feedforward is off, so it does not chatter
+  // around the setpoint
+  private static final double TURN_FEEDFORWARD_DEADBAND_RAD = Math.toRadians(1.0);
+
   private final ModuleIO io;
   private final ModuleIOInputsAutoLogged inputs = new ModuleIOInputsAutoLogged();
   private final int index;
+  private final String inputsKey;
 
   private SimpleMotorFeedforward driveFeedforward =
       new SimpleMotorFeedforward(DriveConstants.DRIVE_KS.get(), DriveConstants.DRIVE_KV.get());
-  private PIDController turnFeedback =
-      new PIDController(DriveConstants.TURN_KP.get(), 0.0, DriveConstants.TURN_KD.get());
-  private Rotation2d angleSetpoint = null; // Setpoint for closed loop control, null for open loop
-  private Double speedSetpoint = null; // Setpoint for closed loop control, null for open loop
-  private double lastPositionMeters = 0.0; // Used for delta calculation
+  // Setpoints for closed loop control, only used when the matching flag is set. Kept as primitives
+  // so running the module every loop does not allocate.
+  private boolean isAngleClosedLoop = false;
+  private double angleSetpointRadians = 0.0;
+  private boolean isSpeedClosedLoop = false;
+  private double speedSetpoint = 0.0;
+
+  private final SwerveModulePosition position = new SwerveModulePosition();
+  private final SwerveModuleState state = new SwerveModuleState();
+  private final SwerveModuleState optimizedSetpoint = new SwerveModuleState();
 
   public Module(ModuleIO io, int index) {
     this.io = io;
     this.index = index;
+    this.inputsKey = "Drive/Module" + index;
+  }
 
-    turnFeedback.enableContinuousInput(-Math.PI, Math.PI);
+  /**
+   * Updates the inputs from the IO layer. Called by the drive while it holds the odometry lock, so
+   * the odometry samples from every module line up. May be called from a worker thread, see
+   * {@link DriveConstants#PARALLEL_MODULE_IO}.
+   */
+  public void updateInputs() {
+    io.updateInputs(inputs);
   }
 
   public void periodic() {
-    io.updateInputs(inputs);
-    Logger.processInputs("Drive/Module" + index, inputs);
+    Logger.processInputs(inputsKey, inputs);
 
     // Update controllers if tunable numbers have changed
     if (DriveConstants.TURN_KP.hasChanged(hashCode())
         || DriveConstants.TURN_KD.hasChanged(hashCode())) {
-      turnFeedback.setPID(DriveConstants.TURN_KP.get(), 0.0, DriveConstants.TURN_KD.get());
+      io.setTurnPID(DriveConstants.TURN_KP.get(), 0.0, DriveConstants.TURN_KD.get());
+    }
+    if (DriveConstants.DRIVE_KP.hasChanged(hashCode())) {
+      io.setDrivePID(DriveConstants.DRIVE_KP.get(), 0.0, 0.0);
     }
     if (DriveConstants.DRIVE_KS.hasChanged(hashCode())
         || DriveConstants.DRIVE_KV.hasChanged(hashCode())) {
@@ -42,48 +62,59 @@ public class Module {
           new SimpleMotorFeedforward(DriveConstants.DRIVE_KS.get(), DriveConstants.DRIVE_KV.get());
     }
 
-    // Run closed loop turn control
-    if (angleSetpoint != null) {
-      io.setTurnVoltage(
-          turnFeedback.calculate(getAngle().getRadians(), angleSetpoint.getRadians()));
+    // Run closed loop turn control, the controllers run on the motor controllers (or in the
+    // simulation) so they are not limited by the loop period
+    if (isAngleClosedLoop) {
+      // Add the voltage to overcome the turn motor's static friction in the direction of the error
+      double turnError = MathUtil.angleModulus(angleSetpointRadians - getAngle().getRadians());
+      double turnFeedforwardVolts =
+          Math.abs(turnError) > TURN_FEEDFORWARD_DEADBAND_RAD
+              ? DriveConstants.TURN_KS.get() * Math.signum(turnError)
+              : 0.0;
+      io.setTurnPosition(angleSetpointRadians, turnFeedforwardVolts);
 
       // Run closed loop drive control
       // Only allowed if closed loop turn control is running
-      if (speedSetpoint != null) {
+      if (isSpeedClosedLoop) {
         // Scale velocity based on turn error
         //
         // When the error is 90°, the velocity setpoint should be 0. As the wheel turns
         // towards the setpoint, its velocity should increase. This is achieved by
         // taking the component of the velocity in the direction of the setpoint.
-        double adjustSpeedSetpoint = speedSetpoint * Math.cos(turnFeedback.getPositionError());
+        double adjustSpeedSetpoint = speedSetpoint * Math.cos(turnError);
 
         // Run drive controller
-        io.setDriveVoltage(driveFeedforward.calculate(adjustSpeedSetpoint));
+        io.setDriveVelocity(adjustSpeedSetpoint, driveFeedforward.calculate(adjustSpeedSetpoint));
       }
     }
   }
 
-  /** Runs the module with the specified setpoint state. Returns the optimized state. */
+  /**
+   * Runs the module with the specified setpoint state. Returns the optimized state, which is reused
+   * by the next call.
+   */
   public SwerveModuleState runSetpoint(SwerveModuleState state) {
-    // Optimize state based on current angle
-    // Controllers run in "periodic" when the setpoint is not null
-    var optimizedState = SwerveModuleState.optimize(state, getAngle());
+    // Optimize state based on current angle, without creating a new state
+    SwerveKinematics.optimize(state, getAngle().getRadians(), optimizedSetpoint);
 
     // Update setpoints, controllers run in "periodic"
-    angleSetpoint = optimizedState.angle;
-    speedSetpoint = optimizedState.speedMetersPerSecond;
+    angleSetpointRadians = optimizedSetpoint.angle.getRadians();
+    isAngleClosedLoop = true;
+    speedSetpoint = optimizedSetpoint.speedMetersPerSecond;
+    isSpeedClosedLoop = true;
 
-    return optimizedState;
+    return optimizedSetpoint;
   }
 
   /** Runs the module with the specified voltage while controlling to zero degrees. */
   public void runCharacterization(double volts) {
     // Closed loop turn control
-    angleSetpoint = new Rotation2d();
+    angleSetpointRadians = 0.0;
+    isAngleClosedLoop = true;
 
     // Open loop drive control
     io.setDriveVoltage(volts);
-    speedSetpoint = null;
+    isSpeedClosedLoop = false;
   }
 
   /** Disables all outputs to motors. */
@@ -92,8 +123,8 @@ public class Module {
     io.setDriveVoltage(0.0);
 
     // Disable closed loop control for turn and drive
-    angleSetpoint = null;
-    speedSetpoint = null;
+    isAngleClosedLoop = false;
+    isSpeedClosedLoop = false;
   }
 
   /** Sets whether brake mode is enabled. */
@@ -107,22 +138,33 @@ public class Module {
     return inputs.turnAbsolutePosition;
   }
 
-  /** Returns the module position (turn angle and drive position). */
+  /** Returns the module position (turn angle and drive position), reused by the next call. */
   public SwerveModulePosition getPosition() {
-    return new SwerveModulePosition(inputs.drivePositionMeters, getAngle());
+    position.distanceMeters = inputs.drivePositionMeters;
+    position.angle = getAngle();
+    return position;
+  }
+
+  /** Returns the timestamps of the odometry samples received this cycle. */
+  public double[] getOdometryTimestamps() {
+    return inputs.odometryTimestamps;
+  }
+
+  /** Returns the drive positions in meters of the odometry samples received this cycle. */
+  public double[] getOdometryDrivePositionsMeters() {
+    return inputs.odometryDrivePositionsMeters;
   }
 
-  /** Returns the module position delta since the last call to this method. */
-  public SwerveModulePosition getPositionDelta() {
-    var delta =
-        new SwerveModulePosition(inputs.drivePositionMeters - lastPositionMeters, getAngle());
-    lastPositionMeters = inputs.drivePositionMeters;
-    return delta;
+  /** Returns the turn angles of the odometry samples received this cycle. */
+  public Rotation2d[] getOdometryTurnPositions() {
+    return inputs.odometryTurnPositions;
   }
 
-  /** Returns the module state (turn angle and drive velocity). */
+  /** Returns the module state (turn angle and drive velocity), reused by the next call. */
   public SwerveModuleState getState() {
-    return new SwerveModuleState(inputs.drivePositionMeters, getAngle());
+    state.speedMetersPerSecond = inputs.driveVelocityMetersPerSec;
+    state.angle = getAngle();
+    return state;
   }
 
   /** Returns the drive velocity in meters/sec. */
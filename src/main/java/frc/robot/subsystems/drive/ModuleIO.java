@@ -16,6 +16,10 @@ public interface ModuleIO {
     public double turnVelocityRadPerSec = 0.0;
     public double turnAppliedVolts = 0.0;
     public double[] turnCurrentAmps = new double[] {};
+
+    public double[] odometryTimestamps = new double[] {};
+    public double[] odometryDrivePositionsMeters = new double[] {};
+    public Rotation2d[] odometryTurnPositions = new Rotation2d[] {};
   }
 
   default void updateInputs(ModuleIOInputs inputs) {}
@@ -24,6 +28,25 @@ public interface ModuleIO {
 
   default void setTurnVoltage(double volts) {}
 
+  /**
+   * Runs the drive motor at the specified velocity using closed loop control on the motor
+   * controller, with the feedforward added to the controller's output.
+   */
+  default void setDriveVelocity(double velocityMetersPerSec, double feedforwardVolts) {}
+
+  /**
+   * Runs the turn motor to the specified angle using closed loop control on the motor controller,
+   * adding the feedforward voltage to the controller output. The angle is in the same frame as
+   * turnAbsolutePosition.
+   */
+  default void setTurnPosition(double positionRad, double feedforwardVolts) {}
+
+  /** Sets the drive velocity gains, in volts per meter/sec. */
+  default void setDrivePID(double kP, double kI, double kD) {}
+
+  /** Sets the turn position gains, in volts per radian. */
+  default void setTurnPID(double kP, double kI, double kD) {}
+
   default void setDriveBrakeMode(boolean brake) {}
 
   default void setTurnBrakeMode(boolean brake) {}
@@ -1,12 +1,16 @@
 package frc.robot.subsystems.drive;
 
 import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.controller.PIDController;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.system.plant.DCMotor;
+import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.simulation.DCMotorSim;
+import frc.lib.utils.LoopClock;
 
 public class ModuleIOSim implements ModuleIO {
-  private static final double LOOP_PERIOD_SECS = 0.02;
+  // Emulates the SPARK MAX running its closed loop control every 1 ms
+  private static final double CONTROL_PERIOD_SECS = 0.001;
   private final double RADS_TO_METERS = DriveConstants.WHEEL_DIAMETER / 2;
 
   private final DCMotorSim driveSim = new DCMotorSim(DCMotor.getNEO(1), 6.75, 0.025);
@@ -16,10 +20,53 @@ public class ModuleIOSim implements ModuleIO {
   private double driveAppliedVolts = 0.0;
   private double turnAppliedVolts = 0.0;
 
+  private final PIDController driveController =
+      new PIDController(0.0, 0.0, 0.0, CONTROL_PERIOD_SECS);
+  private final PIDController turnController =
+      new PIDController(0.0, 0.0, 0.0, CONTROL_PERIOD_SECS);
+  private boolean isDriveClosedLoop = false;
+  private boolean isTurnClosedLoop = false;
+  private double driveVelocitySetpoint = 0.0;
+  private double driveFeedforwardVolts = 0.0;
+  private double turnPositionSetpoint = 0.0;
+  private double turnFeedforwardVolts = 0.0;
+
+  public ModuleIOSim() {
+    turnController.enableContinuousInput(-Math.PI, Math.PI);
+  }
+
   @Override
   public void updateInputs(ModuleIOInputs inputs) {
-    driveSim.update(LOOP_PERIOD_SECS);
-    turnSim.update(LOOP_PERIOD_SECS);
+    // Integrate over the time which actually passed, in steps of about the control period
+    double periodSecs = LoopClock.getInstance().getPeriodSecs();
+    int steps = Math.max(1, (int) Math.round(periodSecs / CONTROL_PERIOD_SECS));
+    double stepSecs = periodSecs / steps;
+    for (int i = 0; i < steps; i++) {
+      if (isDriveClosedLoop) {
+        driveAppliedVolts =
+            MathUtil.clamp(
+                driveController.calculate(
+                        driveSim.getAngularVelocityRadPerSec() * RADS_TO_METERS,
+                        driveVelocitySetpoint)
+                    + driveFeedforwardVolts,
+                -12.0,
+                12.0);
+        driveSim.setInputVoltage(driveAppliedVolts);
+      }
+      if (isTurnClosedLoop) {
+        turnAppliedVolts =
+            MathUtil.clamp(
+                turnController.calculate(
+                        turnSim.getAngularPositionRad() + turnAbsoluteInitPosition.getRadians(),
+                        turnPositionSetpoint)
+                    + turnFeedforwardVolts,
+                -12.0,
+                12.0);
+        turnSim.setInputVoltage(turnAppliedVolts);
+      }
+      driveSim.update(stepSecs);
+      turnSim.update(stepSecs);
+    }
 
     inputs.drivePositionMeters = driveSim.getAngularPositionRad() * RADS_TO_METERS;
     inputs.driveVelocityMetersPerSec = driveSim.getAngularVelocityRadPerSec() * RADS_TO_METERS;
@@ -32,17 +79,48 @@ public class ModuleIOSim implements ModuleIO {
     inputs.turnVelocityRadPerSec = turnSim.getAngularVelocityRadPerSec();
     inputs.turnAppliedVolts = turnAppliedVolts;
     inputs.turnCurrentAmps = new double[] {Math.abs(turnSim.getCurrentDrawAmps())};
+
+    // The sim is only sampled once per loop, so there is a single odometry sample
+    inputs.odometryTimestamps = new double[] {Timer.getFPGATimestamp()};
+    inputs.odometryDrivePositionsMeters = new double[] {inputs.drivePositionMeters};
+    inputs.odometryTurnPositions = new Rotation2d[] {inputs.turnAbsolutePosition};
   }
 
   @Override
   public void setDriveVoltage(double volts) {
+    isDriveClosedLoop = false;
     driveAppliedVolts = MathUtil.clamp(volts, -12.0, 12.0);
     driveSim.setInputVoltage(driveAppliedVolts);
   }
 
   @Override
   public void setTurnVoltage(double volts) {
+    isTurnClosedLoop = false;
     turnAppliedVolts = MathUtil.clamp(volts, -12.0, 12.0);
     turnSim.setInputVoltage(turnAppliedVolts);
   }
+
+  @Override
+  public void setDriveVelocity(double velocityMetersPerSec, double feedforwardVolts) {
+    isDriveClosedLoop = true;
+    driveVelocitySetpoint = velocityMetersPerSec;
+    driveFeedforwardVolts = feedforwardVolts;
+  }
+
+  @Override
+  public void setTurnPosition(double positionRad, double feedforwardVolts) {
+    isTurnClosedLoop = true;
+    turnPositionSetpoint = positionRad;
+    turnFeedforwardVolts = feedforwardVolts;
+  }
+
+  @Override
+  public void setDrivePID(double kP, double kI, double kD) {
+    driveController.setPID(kP, kI, kD);
+  }
+
+  @Override
+  public void setTurnPID(double kP, double kI, double kD) {
+    turnController.setPID(kP, kI, kD);
+  }
 }
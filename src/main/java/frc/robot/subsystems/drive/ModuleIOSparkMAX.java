@@ -1,28 +1,49 @@
 package frc.robot.subsystems.drive;
 
-import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.hardware.CANcoder;
+import com.revrobotics.CANSparkBase.ControlType;
 import com.revrobotics.CANSparkBase.IdleMode;
 import com.revrobotics.CANSparkLowLevel.MotorType;
 import com.revrobotics.CANSparkMax;
 import com.revrobotics.RelativeEncoder;
+import com.revrobotics.SparkPIDController;
+import com.revrobotics.SparkPIDController.ArbFFUnits;
 import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
+import edu.wpi.first.wpilibj.DriverStation;
+import frc.lib.utils.CANBusBudget;
+import frc.lib.utils.OdometryThread;
+import frc.lib.utils.PhoenixSignalRegistry;
+import frc.lib.utils.SampleQueue;
 import frc.robot.Schematic;
 
 public class ModuleIOSparkMAX implements ModuleIO {
+  // The SPARK MAX runs its PID every 1 ms and its output is a fraction of the compensated voltage
+  private static final double CONTROL_PERIOD_SECS = 0.001;
+  private static final double COMPENSATED_VOLTAGE = 12.0;
+  private static final double ABSOLUTE_ENCODER_TIMEOUT_SECS = 0.5;
+
   private final CANSparkMax driveMotor;
   private final RelativeEncoder driveEncoder;
+  private final SparkPIDController driveController;
 
   private final CANSparkMax turnMotor;
   private final RelativeEncoder turnEncoder;
+  private final SparkPIDController turnController;
 
   private final CANcoder turnEncoderAbsolute;
   private final StatusSignal<Double> turnAbsolutePosition;
 
+  private final SampleQueue timestampQueue;
+  private final SampleQueue drivePositionQueue;
+  private final SampleQueue turnPositionQueue;
+
   private int resetCount = 0;
+  // The turn controller runs against the NEO's relative encoder, which reads zero at boot. It must
+  // be synced to the CANcoder before closed loop turn control is used.
+  private boolean isTurnEncoderSynced = false;
   private final int index;
 
   public ModuleIOSparkMAX(int index) {
@@ -80,33 +101,68 @@ public class ModuleIOSparkMAX implements ModuleIO {
     driveMotor.setIdleMode(IdleMode.kCoast);
     turnMotor.setIdleMode(IdleMode.kCoast);
 
-    driveMotor.enableVoltageCompensation(12);
-    turnMotor.enableVoltageCompensation(12);
+    driveMotor.enableVoltageCompensation(COMPENSATED_VOLTAGE);
+    turnMotor.enableVoltageCompensation(COMPENSATED_VOLTAGE);
 
     driveMotor.setSmartCurrentLimit(40);
     turnMotor.setSmartCurrentLimit(30);
 
+    // Closed loop control on the motor controllers, gains are set by Module
+    driveController = driveMotor.getPIDController();
+    driveController.setFeedbackDevice(driveEncoder);
+    turnController = turnMotor.getPIDController();
+    turnController.setFeedbackDevice(turnEncoder);
+    turnController.setPositionPIDWrappingEnabled(true);
+    turnController.setPositionPIDWrappingMinInput(-Math.PI);
+    turnController.setPositionPIDWrappingMaxInput(Math.PI);
+
+    // Only send the frames which are read. Positions are sent fast enough for the odometry thread,
+    // everything else once per loop. The thread refreshes its own copy of the absolute position
+    // signal, the main loop's copy is not thread safe.
+    CANBusBudget.configureSparkMax(
+        driveMotor,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS,
+        (int) (1000.0 / OdometryThread.FREQUENCY_HZ));
+    CANBusBudget.configureSparkMax(
+        turnMotor,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS,
+        CANBusBudget.LOOP_FRAME_PERIOD_MS);
+    StatusSignal<Double> odometryTurnAbsolutePosition = turnAbsolutePosition.clone();
+    CANBusBudget.configurePhoenixSignals(OdometryThread.FREQUENCY_HZ, odometryTurnAbsolutePosition);
+    CANBusBudget.optimizeBusUtilization(turnEncoderAbsolute);
+    PhoenixSignalRegistry.register(turnAbsolutePosition);
+    timestampQueue = OdometryThread.getInstance().makeTimestampQueue();
+    drivePositionQueue = OdometryThread.getInstance().registerSignal(driveEncoder::getPosition);
+    turnPositionQueue =
+        OdometryThread.getInstance()
+            .registerSignal(() -> odometryTurnAbsolutePosition.refresh().getValueAsDouble());
+
     this.index = index;
+    turnAbsolutePosition.waitForUpdate(ABSOLUTE_ENCODER_TIMEOUT_SECS);
+    syncTurnEncoder();
   }
 
   @Override
   public void updateInputs(ModuleIOInputs inputs) {
-    BaseStatusSignal.refreshAll(turnAbsolutePosition);
+    // turnAbsolutePosition is refreshed by Drive through PhoenixSignalRegistry
     inputs.driveVelocityMetersPerSec = driveEncoder.getVelocity();
     inputs.drivePositionMeters = driveEncoder.getPosition();
     inputs.driveAppliedVolts = driveMotor.getAppliedOutput() * driveMotor.getBusVoltage();
+    // Logged arrays are new every loop, AdvantageKit's log receivers hold on to the previous ones
     inputs.driveCurrentAmps = new double[] {driveMotor.getOutputCurrent()};
     inputs.turnVelocityRadPerSec = turnEncoder.getVelocity();
 
-    // Reset the turn encoder sometimes when not moving
+    // The modules may be turned by hand while disabled, so resync before the next closed loop turn
+    // control. Also reset the turn encoder sometimes when not moving.
+    if (DriverStation.isDisabled()) {
+      isTurnEncoderSynced = false;
+    }
     if (turnEncoder.getVelocity() < Units.degreesToRadians(0.5)) {
       if (++resetCount >= 500) {
         resetCount = 0;
-        turnEncoder.setPosition(
-            MathUtil.angleModulus(
-                Rotation2d.fromRotations(turnAbsolutePosition.getValueAsDouble())
-                    .minus(DriveConstants.ABSOLUTE_ANGLE_OFFSET[index])
-                    .getRadians()));
+        syncTurnEncoder();
       }
     } else {
       resetCount = 0;
@@ -118,6 +174,17 @@ public class ModuleIOSparkMAX implements ModuleIO {
             .minus(DriveConstants.ABSOLUTE_ANGLE_OFFSET[index]);
     inputs.turnAppliedVolts = turnMotor.getAppliedOutput() * turnMotor.getBusVoltage();
     inputs.turnCurrentAmps = new double[] {turnMotor.getOutputCurrent()};
+
+    // Drain the samples collected by the odometry thread since the last loop
+    inputs.odometryTimestamps = timestampQueue.drain();
+    inputs.odometryDrivePositionsMeters = drivePositionQueue.drain();
+    inputs.odometryTurnPositions = new Rotation2d[turnPositionQueue.size()];
+    for (int i = 0; i < inputs.odometryTurnPositions.length; i++) {
+      inputs.odometryTurnPositions[i] =
+          Rotation2d.fromRotations(turnPositionQueue.get(i))
+              .minus(DriveConstants.ABSOLUTE_ANGLE_OFFSET[index]);
+    }
+    turnPositionQueue.clear();
   }
 
   @Override
@@ -130,6 +197,58 @@ public class ModuleIOSparkMAX implements ModuleIO {
     turnMotor.setVoltage(volts);
   }
 
+  @Override
+  public void setDriveVelocity(double velocityMetersPerSec, double feedforwardVolts) {
+    driveController.setReference(
+        velocityMetersPerSec, ControlType.kVelocity, 0, feedforwardVolts, ArbFFUnits.kVoltage);
+  }
+
+  @Override
+  public void setTurnPosition(double positionRad, double feedforwardVolts) {
+    if (!isTurnEncoderSynced) {
+      syncTurnEncoder();
+    }
+    turnController.setReference(
+        positionRad, ControlType.kPosition, 0, feedforwardVolts, ArbFFUnits.kVoltage);
+  }
+
+  /**
+   * Sets the relative turn encoder to the CANcoder's angle, so the controller's setpoints are in
+   * the same frame as the turnAbsolutePosition input. Does nothing if the CANcoder has no valid
+   * reading, the sync is tried again before the next setpoint.
+   */
+  private void syncTurnEncoder() {
+    if (!turnAbsolutePosition.getStatus().isOK()) {
+      return;
+    }
+    turnEncoder.setPosition(
+        MathUtil.angleModulus(
+            Rotation2d.fromRotations(turnAbsolutePosition.getValueAsDouble())
+                .minus(DriveConstants.ABSOLUTE_ANGLE_OFFSET[index])
+                .getRadians()));
+    isTurnEncoderSynced = true;
+  }
+
+  @Override
+  public void setDrivePID(double kP, double kI, double kD) {
+    setPID(driveController, kP, kI, kD);
+  }
+
+  @Override
+  public void setTurnPID(double kP, double kI, double kD) {
+    setPID(turnController, kP, kI, kD);
+  }
+
+  /**
+   * Converts gains in volts per unit of error to the SPARK MAX's units, a fraction of the
+   * compensated voltage with the integral and derivative taken per control period.
+   */
+  private static void setPID(SparkPIDController controller, double kP, double kI, double kD) {
+    controller.setP(kP / COMPENSATED_VOLTAGE);
+    controller.setI(kI * CONTROL_PERIOD_SECS / COMPENSATED_VOLTAGE);
+    controller.setD(kD / CONTROL_PERIOD_SECS / COMPENSATED_VOLTAGE);
+  }
+
   @Override
   public void setDriveBrakeMode(boolean brake) {
     driveMotor.setIdleMode(brake ? IdleMode.kBrake : IdleMode.kCoast);
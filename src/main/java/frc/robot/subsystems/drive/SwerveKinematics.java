@@ -0,0 +1,155 @@
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import frc.lib.utils.GeomUtils;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * The swerve kinematics run every loop, the same math as ChassisSpeeds.discretize(),
+ * SwerveDriveKinematics and SwerveModuleState.optimize() but written into preallocated arrays and
+ * states. Rotation2d is immutable, so a module angle is only a new object when its heading changes.
+ * Used by Drive, Module and the kinematics benchmark.
+ */
+public class SwerveKinematics {
+  // Headings closer than this are treated as the same, so the existing angle can be reused
+  private static final double headingTolerance = 1e-9;
+
+  private SwerveKinematics() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * Calculates the forward kinematics, the pseudo-inverse of the inverse kinematics matrix, for
+   * {@link #toChassisMotion(double[], double[], double[])}.
+   *
+   * @param moduleTranslations the position of each module relative to the center of the robot
+   * @return the forward kinematics as a row-major 3 x 2n matrix, for n modules
+   */
+  public static double[] calculateForwardKinematics(Translation2d[] moduleTranslations) {
+    int columns = moduleTranslations.length * 2;
+    var inverseKinematics = new SimpleMatrix(columns, 3);
+    for (int i = 0; i < moduleTranslations.length; i++) {
+      inverseKinematics.setRow(i * 2, 0, 1, 0, -moduleTranslations[i].getY());
+      inverseKinematics.setRow(i * 2 + 1, 0, 0, 1, moduleTranslations[i].getX());
+    }
+    var pseudoInverse = inverseKinematics.pseudoInverse();
+    double[] forwardKinematics = new double[3 * columns];
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < columns; column++) {
+        forwardKinematics[row * columns + column] = pseudoInverse.get(row, column);
+      }
+    }
+    return forwardKinematics;
+  }
+
+  /**
+   * Applies the forward kinematics to the module vectors (x and y of each module's velocity or
+   * motion), to find the motion of the chassis in x, y and theta.
+   *
+   * @param forwardKinematics the matrix from {@link #calculateForwardKinematics(Translation2d[])}
+   * @param vectors the x and y of each module, interleaved
+   * @param out an array of length 3 which receives the x, y and theta of the chassis
+   */
+  public static void toChassisMotion(double[] forwardKinematics, double[] vectors, double[] out) {
+    int columns = vectors.length;
+    for (int row = 0; row < 3; row++) {
+      double sum = 0.0;
+      for (int column = 0; column < columns; column++) {
+        sum += forwardKinematics[row * columns + column] * vectors[column];
+      }
+      out[row] = sum;
+    }
+  }
+
+  /**
+   * Discretizes the chassis speeds, the same as ChassisSpeeds.discretize(), so that following the
+   * speeds for the period moves the robot along the arc they describe.
+   *
+   * @param speeds the continuous chassis speeds
+   * @param periodSecs the time the speeds will be applied for
+   * @param out an array of length 3 which receives the discrete vx, vy and omega
+   */
+  public static void discretize(ChassisSpeeds speeds, double periodSecs, double[] out) {
+    GeomUtils.log(
+        0.0,
+        0.0,
+        0.0,
+        speeds.vxMetersPerSecond * periodSecs,
+        speeds.vyMetersPerSecond * periodSecs,
+        speeds.omegaRadiansPerSecond * periodSecs,
+        out);
+    out[0] /= periodSecs;
+    out[1] /= periodSecs;
+    out[2] /= periodSecs;
+  }
+
+  /**
+   * Calculates the module states for a chassis motion, the same as
+   * SwerveDriveKinematics.toSwerveModuleStates(). While the chassis is stopped each module holds
+   * its last heading rather than snapping to zero degrees, and while a module's direction is
+   * unchanged (e.g. driving straight) it keeps its last heading object.
+   *
+   * @param chassisSpeeds the vx, vy and omega of the chassis
+   * @param moduleTranslations the position of each module relative to the center of the robot
+   * @param moduleHeadings the last heading of each module, updated while moving
+   * @param states the states to write the module speeds and angles to
+   */
+  public static void toModuleStates(
+      double[] chassisSpeeds,
+      Translation2d[] moduleTranslations,
+      Rotation2d[] moduleHeadings,
+      SwerveModuleState[] states) {
+    double vx = chassisSpeeds[0];
+    double vy = chassisSpeeds[1];
+    double omega = chassisSpeeds[2];
+    boolean isStopped = vx == 0.0 && vy == 0.0 && omega == 0.0;
+    for (int i = 0; i < states.length; i++) {
+      if (isStopped) {
+        states[i].speedMetersPerSecond = 0.0;
+        states[i].angle = moduleHeadings[i];
+      } else {
+        double moduleVx = vx - omega * moduleTranslations[i].getY();
+        double moduleVy = vy + omega * moduleTranslations[i].getX();
+        double speed = Math.hypot(moduleVx, moduleVy);
+        Rotation2d heading = moduleHeadings[i];
+        double cross = heading.getCos() * moduleVy - heading.getSin() * moduleVx;
+        double dot = heading.getCos() * moduleVx + heading.getSin() * moduleVy;
+        if (dot <= 0.0 || Math.abs(cross) > headingTolerance * speed) {
+          heading = new Rotation2d(moduleVx, moduleVy);
+          moduleHeadings[i] = heading;
+        }
+        states[i].speedMetersPerSecond = speed;
+        states[i].angle = heading;
+      }
+    }
+  }
+
+  /**
+   * Optimizes a module state for the current module angle, the same as
+   * SwerveModuleState.optimize() but writing into an existing state. The module drives backwards
+   * rather than turning more than 90 degrees. The flipped angle already in the output state is
+   * reused when it matches, so following the same setpoint angle does not allocate.
+   *
+   * @param state the setpoint state
+   * @param currentAngleRad the current angle of the module
+   * @param out the state to write the optimized speed and angle to
+   */
+  public static void optimize(
+      SwerveModuleState state, double currentAngleRad, SwerveModuleState out) {
+    double delta = MathUtil.angleModulus(state.angle.getRadians() - currentAngleRad);
+    if (Math.abs(delta) > Math.PI / 2.0) {
+      out.speedMetersPerSecond = -state.speedMetersPerSecond;
+      if (Math.abs(out.angle.getCos() + state.angle.getCos()) > headingTolerance
+          || Math.abs(out.angle.getSin() + state.angle.getSin()) > headingTolerance) {
+        out.angle = new Rotation2d(-state.angle.getCos(), -state.angle.getSin());
+      }
+    } else {
+      out.speedMetersPerSecond = state.speedMetersPerSecond;
+      out.angle = state.angle;
+    }
+  }
+}
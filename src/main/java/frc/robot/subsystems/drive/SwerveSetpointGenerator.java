@@ -0,0 +1,172 @@
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+
+/**
+ * Limits how quickly the module setpoints can change, so the modules do not flip 180 degrees or
+ * saturate their current when the requested direction changes suddenly.
+ *
+ * <p>Each loop, the generator moves from the previous setpoint towards the desired module states
+ * by the largest fraction which keeps every module within its acceleration and steering velocity
+ * limits. All modules use the same fraction, so the setpoint stays a valid chassis motion when the
+ * previous and desired states are both valid chassis motions.
+ */
+public class SwerveSetpointGenerator {
+  private static final double epsilon = 1e-6;
+  private static final int steeringIterations = 10;
+  // Headings closer than this are treated as the same, so the existing angle can be reused
+  private static final double headingTolerance = 1e-9;
+
+  private final double maxAcceleration;
+  private final double maxSteeringVelocity;
+
+  // The previous setpoint, as the x and y velocity of each module and the heading of each module.
+  // Rotation2d is immutable, so the previous angles are reused while the headings do not change.
+  private final double[] previousVx = new double[4];
+  private final double[] previousVy = new double[4];
+  private final Rotation2d[] previousAngles = new Rotation2d[4];
+  private final double[] deltaVx = new double[4];
+  private final double[] deltaVy = new double[4];
+
+  /**
+   * Creates a new setpoint generator.
+   *
+   * @param maxAcceleration the maximum change in each module's velocity, in meters/sec^2
+   * @param maxSteeringVelocity the maximum steering velocity of each module, in radians/sec
+   */
+  public SwerveSetpointGenerator(double maxAcceleration, double maxSteeringVelocity) {
+    this.maxAcceleration = maxAcceleration;
+    this.maxSteeringVelocity = maxSteeringVelocity;
+    for (int i = 0; i < 4; i++) {
+      previousAngles[i] = new Rotation2d();
+    }
+  }
+
+  /**
+   * Resets the previous setpoint to the given module states, usually the measured states. Should
+   * be called whenever the setpoints have not been generated recently, such as while disabled.
+   */
+  public void reset(SwerveModuleState[] states) {
+    for (int i = 0; i < 4; i++) {
+      previousVx[i] = states[i].speedMetersPerSecond * states[i].angle.getCos();
+      previousVy[i] = states[i].speedMetersPerSecond * states[i].angle.getSin();
+      previousAngles[i] = states[i].angle;
+    }
+  }
+
+  /**
+   * Generates the next module setpoints.
+   *
+   * @param desiredStates the desired module states, which should already be desaturated
+   * @param setpointStates the array to write the limited module states to, may be the same as the
+   *     desired states
+   * @param dtSecs the time until the next setpoint is generated
+   */
+  public void generate(
+      SwerveModuleState[] desiredStates, SwerveModuleState[] setpointStates, double dtSecs) {
+    double maxDeltaVelocity = maxAcceleration * dtSecs;
+    double maxDeltaHeading = maxSteeringVelocity * dtSecs;
+
+    // Find the largest step towards the desired states which every module can follow
+    double fraction = 1.0;
+    for (int i = 0; i < 4; i++) {
+      Rotation2d desiredAngle = desiredStates[i].angle;
+      deltaVx[i] = desiredStates[i].speedMetersPerSecond * desiredAngle.getCos() - previousVx[i];
+      deltaVy[i] = desiredStates[i].speedMetersPerSecond * desiredAngle.getSin() - previousVy[i];
+
+      // The module velocity changes linearly with the fraction, so the acceleration limit is exact
+      double deltaVelocity = Math.hypot(deltaVx[i], deltaVy[i]);
+      if (deltaVelocity > maxDeltaVelocity) {
+        fraction = Math.min(fraction, maxDeltaVelocity / deltaVelocity);
+      }
+
+      // A stopped module can steer freely without scrubbing, Module scales its speed by the
+      // steering error while it turns
+      if (Math.hypot(previousVx[i], previousVy[i]) > epsilon) {
+        fraction = Math.min(fraction, findSteeringLimit(i, fraction, maxDeltaHeading));
+      }
+    }
+
+    for (int i = 0; i < 4; i++) {
+      double vx = previousVx[i] + fraction * deltaVx[i];
+      double vy = previousVy[i] + fraction * deltaVy[i];
+      double speed = Math.hypot(vx, vy);
+      Rotation2d desiredAngle = desiredStates[i].angle;
+      if (speed > epsilon) {
+        // Point the module in the direction of travel, driving backwards rather than flipping
+        double heading = Math.atan2(vy, vx);
+        if (Math.abs(MathUtil.angleModulus(heading - previousAngles[i].getRadians()))
+            > Math.PI / 2.0) {
+          heading = MathUtil.angleModulus(heading + Math.PI);
+          speed = -speed;
+        }
+        setpointStates[i].speedMetersPerSecond = speed;
+        setpointStates[i].angle = getAngle(i, heading, desiredAngle);
+      } else {
+        // Stopped, so hold the desired heading (e.g. the X arrangement)
+        setpointStates[i].speedMetersPerSecond = 0.0;
+        setpointStates[i].angle = desiredAngle;
+      }
+      previousAngles[i] = setpointStates[i].angle;
+      previousVx[i] = vx;
+      previousVy[i] = vy;
+    }
+  }
+
+  /**
+   * Returns an angle for a module's setpoint heading, reusing the desired or previous angle if it
+   * has the same heading, so an unlimited or unchanged setpoint does not create a new object.
+   */
+  private Rotation2d getAngle(int index, double heading, Rotation2d desiredAngle) {
+    if (Math.abs(MathUtil.angleModulus(heading - desiredAngle.getRadians())) <= headingTolerance) {
+      return desiredAngle;
+    }
+    if (Math.abs(MathUtil.angleModulus(heading - previousAngles[index].getRadians()))
+        <= headingTolerance) {
+      return previousAngles[index];
+    }
+    return new Rotation2d(heading);
+  }
+
+  /**
+   * Finds the largest fraction, up to the maximum, for which a module's direction of travel turns
+   * no more than the maximum. The direction turns monotonically as the velocity moves along a
+   * straight line, so this is a bisection.
+   */
+  private double findSteeringLimit(int index, double maxFraction, double maxDeltaHeading) {
+    if (isSteeringFeasible(index, maxFraction, maxDeltaHeading, true)) {
+      return maxFraction;
+    }
+    double low = 0.0;
+    double high = maxFraction;
+    for (int iteration = 0; iteration < steeringIterations; iteration++) {
+      double mid = (low + high) / 2.0;
+      if (isSteeringFeasible(index, mid, maxDeltaHeading, false)) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns whether the change in a module's direction of travel at the given fraction is within
+   * the maximum. If the module is allowed to reverse, a change of close to 180 degrees is also
+   * feasible, since the module can drive backwards instead.
+   */
+  private boolean isSteeringFeasible(
+      int index, double fraction, double maxDeltaHeading, boolean canReverse) {
+    double vx = previousVx[index] + fraction * deltaVx[index];
+    double vy = previousVy[index] + fraction * deltaVy[index];
+    double cross = previousVx[index] * vy - previousVy[index] * vx;
+    double dot = previousVx[index] * vx + previousVy[index] * vy;
+    double deltaHeading = Math.abs(Math.atan2(cross, dot));
+    if (canReverse) {
+      deltaHeading = Math.min(deltaHeading, Math.PI - deltaHeading);
+    }
+    return deltaHeading <= maxDeltaHeading;
+  }
+}
@@ -0,0 +1,586 @@
+package frc.lib.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.MatBuilder;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.Nat;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import frc.lib.utils.RobotOdometry.TimestampedVisionUpdate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the RobotOdometry history: insertion, vision splits, pruning, and the snapshot
+ * published to other threads. The FPGA clock is paused, so the tests choose which samples are old
+ * enough to be pruned.
+ */
+class RobotOdometryTest {
+  private static final double EPSILON = 1e-9;
+  private static final double SAMPLE_PERIOD_SECS = 1.0 / OdometryThread.FREQUENCY_HZ;
+  private static final Matrix<N3, N1> STATE_STD_DEVS = VecBuilder.fill(0.003, 0.003, 0.0002);
+
+  private RobotOdometry odometry;
+  private double startTimestamp;
+
+  @BeforeAll
+  static void setupAll() {
+    assertTrue(HAL.initialize(500, 0));
+    SimHooks.pauseTiming();
+  }
+
+  @AfterAll
+  static void teardownAll() {
+    SimHooks.resumeTiming();
+  }
+
+  @BeforeEach
+  void setup() {
+    odometry = new RobotOdometry(STATE_STD_DEVS);
+    // Ahead of the clock, so nothing is pruned unless a test steps the clock
+    startTimestamp = Timer.getFPGATimestamp() + 1.0;
+  }
+
+  @Test
+  void driveDataComposesTwists() {
+    Twist2d twist = new Twist2d(0.01, 0.002, 0.001);
+    Pose2d expected = new Pose2d();
+    for (int i = 1; i <= 100; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+      expected = expected.exp(twist);
+    }
+
+    assertPoseEquals(expected, odometry.getLatestPose());
+  }
+
+  @Test
+  void outOfOrderDriveDataIsInsertedInOrder() {
+    List<Twist2d> twists = randomTwists(new Random(1), 200);
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < twists.size(); i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twists.get(i));
+      order.add(i);
+    }
+
+    RobotOdometry shuffled = new RobotOdometry(STATE_STD_DEVS);
+    Collections.shuffle(order, new Random(2));
+    for (int i : order) {
+      shuffled.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twists.get(i));
+    }
+
+    assertPoseEquals(odometry.getLatestPose(), shuffled.getLatestPose());
+  }
+
+  @Test
+  void fullHistoryFoldsOldestIntoBase() {
+    int sampleCount = 1000;
+    List<Twist2d> twists = randomTwists(new Random(3), sampleCount);
+    Pose2d[] expected = new Pose2d[sampleCount];
+    Pose2d pose = new Pose2d();
+    for (int i = 0; i < sampleCount; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twists.get(i));
+      pose = pose.exp(twists.get(i));
+      expected[i] = pose;
+    }
+
+    assertPoseEquals(expected[sampleCount - 1], odometry.getLatestPose());
+    // The history holds the last 512 updates, anything older returns the oldest of them
+    assertPoseEquals(expected[sampleCount - 512], odometry.getPoseAt(startTimestamp));
+    assertPoseEquals(expected[600], odometry.getPoseAt(startTimestamp + 600 * SAMPLE_PERIOD_SECS));
+  }
+
+  @Test
+  void oldUpdatesArePrunedIntoBase() {
+    int sampleCount = 250;
+    List<Twist2d> twists = randomTwists(new Random(4), sampleCount);
+    double[] timestamps = new double[sampleCount];
+    Pose2d[] expected = new Pose2d[sampleCount];
+    Pose2d pose = new Pose2d();
+    for (int i = 0; i < sampleCount; i++) {
+      SimHooks.stepTiming(SAMPLE_PERIOD_SECS);
+      timestamps[i] = Timer.getFPGATimestamp();
+      odometry.addDriveData(timestamps[i], twists.get(i));
+      pose = pose.exp(twists.get(i));
+      expected[i] = pose;
+    }
+
+    int oldest = 0;
+    double oldestTimestamp = Timer.getFPGATimestamp() - 0.3;
+    while (timestamps[oldest] < oldestTimestamp) {
+      oldest++;
+    }
+    assertTrue(oldest > 0);
+    assertPoseEquals(expected[sampleCount - 1], odometry.getLatestPose());
+    assertPoseEquals(expected[oldest], odometry.getPoseAt(timestamps[0]));
+  }
+
+  @Test
+  void visionSplitPreservesTwist() {
+    Twist2d twist = new Twist2d(0.02, -0.01, 0.05);
+    Pose2d expected = new Pose2d();
+    for (int i = 1; i <= 10; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+      expected = expected.exp(twist);
+    }
+
+    // A vision update with no information still splits the twist it falls within
+    odometry.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(
+                startTimestamp + 5.3 * SAMPLE_PERIOD_SECS,
+                new Pose2d(5.0, 5.0, new Rotation2d(1.0)),
+                VecBuilder.fill(
+                    Double.POSITIVE_INFINITY,
+                    Double.POSITIVE_INFINITY,
+                    Double.POSITIVE_INFINITY))));
+
+    assertPoseEquals(expected, odometry.getLatestPose());
+    assertPoseEquals(
+        new Pose2d().exp(twist).exp(twist).exp(twist).exp(twist).exp(twist),
+        odometry.getPoseAt(startTimestamp + 5 * SAMPLE_PERIOD_SECS));
+  }
+
+  @Test
+  void visionPullsPoseTowardMeasurement() {
+    odometry.resetPose(new Pose2d());
+    Twist2d twist = new Twist2d(0.01, 0.0, 0.0);
+    for (int i = 1; i <= 10; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+    double driveOnlyX = odometry.getLatestPose().getX();
+
+    odometry.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(
+                startTimestamp + 5.5 * SAMPLE_PERIOD_SECS,
+                new Pose2d(1.0, 0.0, new Rotation2d()),
+                VecBuilder.fill(0.01, 0.01, 0.01))));
+
+    double correctedX = odometry.getLatestPose().getX();
+    assertTrue(correctedX > driveOnlyX);
+    assertTrue(correctedX < 1.0 + 5 * twist.dx);
+  }
+
+  @Test
+  void visionBatchMatchesSeparateUpdates() {
+    RobotOdometry separate = new RobotOdometry(STATE_STD_DEVS);
+    List<Twist2d> twists = randomTwists(new Random(5), 50);
+    for (int i = 0; i < twists.size(); i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twists.get(i));
+      separate.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twists.get(i));
+    }
+
+    // Two cameras at the same timestamp, and one between drive samples
+    List<TimestampedVisionUpdate> visionData =
+        List.of(
+            new TimestampedVisionUpdate(
+                startTimestamp + 10 * SAMPLE_PERIOD_SECS,
+                new Pose2d(0.5, 0.1, new Rotation2d(0.1)),
+                VecBuilder.fill(0.5, 0.5, 1.0)),
+            new TimestampedVisionUpdate(
+                startTimestamp + 10 * SAMPLE_PERIOD_SECS,
+                new Pose2d(0.4, 0.2, new Rotation2d(0.2)),
+                VecBuilder.fill(0.2, 0.2, 0.5)),
+            new TimestampedVisionUpdate(
+                startTimestamp + 20.5 * SAMPLE_PERIOD_SECS,
+                new Pose2d(0.6, 0.0, new Rotation2d(0.0)),
+                VecBuilder.fill(0.3, 0.3, 0.8)));
+    odometry.addVisionData(visionData);
+    for (int i = visionData.size() - 1; i >= 0; i--) {
+      separate.addVisionData(List.of(visionData.get(i)));
+    }
+
+    assertPoseEquals(separate.getLatestPose(), odometry.getLatestPose());
+  }
+
+  @Test
+  void outlierCheckLoosensWhileDeadReckoning() {
+    RobotOdometry deadReckoned = new RobotOdometry(STATE_STD_DEVS);
+    odometry.resetPose(new Pose2d());
+    deadReckoned.resetPose(new Pose2d());
+    Twist2d twist = new Twist2d(0.01, 0.0, 0.0);
+    for (int i = 1; i <= 20; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+    int sampleCount = 5000;
+    for (int i = 1; i <= sampleCount; i++) {
+      deadReckoned.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+
+    // The same error is less surprising after 20 s without vision than after 80 ms
+    double afterShortDrive =
+        distanceSquaredFromOdometry(odometry, startTimestamp + 15 * SAMPLE_PERIOD_SECS);
+    double afterLongDrive =
+        distanceSquaredFromOdometry(
+            deadReckoned, startTimestamp + (sampleCount - 5) * SAMPLE_PERIOD_SECS);
+    assertTrue(afterLongDrive < afterShortDrive);
+  }
+
+  @Test
+  void outlierCheckWaitsForPrior() {
+    assertOutlierCheckWaitsForPrior(new RobotOdometry(STATE_STD_DEVS));
+  }
+
+  @Test
+  void extendedKalmanFilterOutlierCheckWaitsForPrior() {
+    assertOutlierCheckWaitsForPrior(new RobotOdometry(STATE_STD_DEVS, true));
+  }
+
+  @Test
+  void visionOutsideHistoryIsDropped() {
+    odometry.resetPose(new Pose2d());
+    assertFalse(odometry.isWithinHistory(startTimestamp));
+    Twist2d twist = new Twist2d(0.01, 0.0, 0.0);
+    for (int i = 1; i <= 10; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+    Pose2d driveOnly = odometry.getLatestPose();
+
+    double before = startTimestamp + 0.5 * SAMPLE_PERIOD_SECS;
+    double after = startTimestamp + 10.5 * SAMPLE_PERIOD_SECS;
+    assertFalse(odometry.isWithinHistory(before));
+    assertFalse(odometry.isWithinHistory(after));
+    assertTrue(odometry.isWithinHistory(startTimestamp + SAMPLE_PERIOD_SECS));
+    assertTrue(odometry.isWithinHistory(startTimestamp + 10 * SAMPLE_PERIOD_SECS));
+
+    Pose2d visionPose = new Pose2d(1.0, 0.0, new Rotation2d());
+    Matrix<N3, N1> stdDevs = VecBuilder.fill(0.01, 0.01, 0.01);
+    odometry.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(before, visionPose, stdDevs),
+            new TimestampedVisionUpdate(after, visionPose, stdDevs)));
+    assertPoseEquals(driveOnly, odometry.getLatestPose());
+  }
+
+  @Test
+  void noiseScaleTrustsVisionMore() {
+    RobotOdometry scaled = new RobotOdometry(STATE_STD_DEVS);
+    odometry.resetPose(new Pose2d());
+    scaled.resetPose(new Pose2d());
+    Twist2d twist = new Twist2d(0.01, 0.0, 0.0);
+    for (int i = 1; i <= 10; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+      scaled.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+
+    double timestamp = startTimestamp + 5.5 * SAMPLE_PERIOD_SECS;
+    Pose2d visionPose = new Pose2d(1.0, 0.0, new Rotation2d());
+    Matrix<N3, N1> stdDevs = VecBuilder.fill(0.5, 0.5, 1.0);
+    odometry.addVisionData(List.of(new TimestampedVisionUpdate(timestamp, visionPose, stdDevs)));
+    scaled.addVisionData(
+        List.of(new TimestampedVisionUpdate(timestamp, visionPose, stdDevs, 1.0e4)));
+
+    assertTrue(scaled.getLatestPose().getX() > odometry.getLatestPose().getX());
+  }
+
+  @Test
+  void extendedKalmanFilterPredictsCovariance() {
+    RobotOdometry ekf = new RobotOdometry(STATE_STD_DEVS, true);
+    ekf.resetPose(new Pose2d());
+    Matrix<N3, N3> q = getQ();
+    // Each sample covers a fifth of the 20 ms period q is defined over
+    Matrix<N3, N3> sampleQ = q.times(SAMPLE_PERIOD_SECS / LoopClock.NOMINAL_PERIOD_SECS);
+
+    Matrix<N3, N3> expected = q;
+    Pose2d pose = new Pose2d();
+    List<Twist2d> twists = randomTwists(new Random(7), 5);
+    for (int i = 0; i < twists.size(); i++) {
+      Pose2d next = pose.exp(twists.get(i));
+      var f = getJacobian(pose, next);
+      expected = f.times(expected).times(f.transpose()).plus(sampleQ);
+      pose = next;
+      ekf.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twists.get(i));
+    }
+
+    assertMatrixEquals(expected, ekf.getLatestEstimate().covariance());
+  }
+
+  @Test
+  void extendedKalmanFilterGainMatchesHandCalculation() {
+    RobotOdometry ekf = new RobotOdometry(STATE_STD_DEVS, true);
+    ekf.resetPose(new Pose2d());
+    Twist2d twist = new Twist2d(0.02, 0.01, 0.05);
+    ekf.addDriveData(startTimestamp, twist);
+
+    Matrix<N3, N3> q = getQ();
+    Pose2d predicted = new Pose2d().exp(twist);
+    var f = getJacobian(new Pose2d(), predicted);
+    Matrix<N3, N3> p =
+        f.times(q)
+            .times(f.transpose())
+            .plus(q.times(SAMPLE_PERIOD_SECS / LoopClock.NOMINAL_PERIOD_SECS));
+    Matrix<N3, N1> stdDevs = VecBuilder.fill(0.005, 0.008, 0.001);
+    Matrix<N3, N3> r =
+        MatBuilder.fill(
+            Nat.N3(),
+            Nat.N3(),
+            stdDevs.get(0, 0) * stdDevs.get(0, 0),
+            0.0,
+            0.0,
+            0.0,
+            stdDevs.get(1, 0) * stdDevs.get(1, 0),
+            0.0,
+            0.0,
+            0.0,
+            stdDevs.get(2, 0) * stdDevs.get(2, 0));
+    Matrix<N3, N3> k = p.times(p.plus(r).inv());
+    Matrix<N3, N1> innovation = VecBuilder.fill(0.01, -0.005, 0.002);
+    Matrix<N3, N1> correction = k.times(innovation);
+
+    ekf.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(
+                startTimestamp,
+                new Pose2d(
+                    predicted.getX() + innovation.get(0, 0),
+                    predicted.getY() + innovation.get(1, 0),
+                    new Rotation2d(predicted.getRotation().getRadians() + innovation.get(2, 0))),
+                stdDevs)));
+
+    var estimate = ekf.getLatestEstimate();
+    assertPoseEquals(
+        new Pose2d(
+            predicted.getX() + correction.get(0, 0),
+            predicted.getY() + correction.get(1, 0),
+            new Rotation2d(predicted.getRotation().getRadians() + correction.get(2, 0))),
+        estimate.pose());
+    assertMatrixEquals(Matrix.eye(Nat.N3()).minus(k).times(p), estimate.covariance());
+  }
+
+  @Test
+  void extendedKalmanFilterTrustsVisionMoreAfterDeadReckoning() {
+    RobotOdometry justReset = new RobotOdometry(STATE_STD_DEVS, true);
+    RobotOdometry deadReckoned = new RobotOdometry(STATE_STD_DEVS, true);
+    justReset.resetPose(new Pose2d());
+    deadReckoned.resetPose(new Pose2d());
+    Twist2d twist = new Twist2d(0.01, 0.0, 0.0);
+    for (int i = 1; i <= 20; i++) {
+      justReset.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+    int sampleCount = 5000;
+    for (int i = 1; i <= sampleCount; i++) {
+      deadReckoned.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+
+    // The same vision pose moves the estimate further after 20 s without vision than after 80 ms
+    double shortPull = pullToSide(justReset, startTimestamp + 20 * SAMPLE_PERIOD_SECS);
+    double longPull = pullToSide(deadReckoned, startTimestamp + sampleCount * SAMPLE_PERIOD_SECS);
+    assertTrue(shortPull > 0.0);
+    assertTrue(longPull > shortPull);
+  }
+
+  @Test
+  void extendedKalmanFilterTakesFirstFixWithoutReset() {
+    RobotOdometry ekf = new RobotOdometry(STATE_STD_DEVS, true);
+    ekf.addDriveData(startTimestamp, new Twist2d(0.01, 0.0, 0.0));
+    assertEquals(Double.POSITIVE_INFINITY, ekf.getLatestEstimate().covariance().get(0, 0));
+
+    // With no prior, the first fix replaces the pose and its covariance
+    Pose2d visionPose = new Pose2d(3.0, 2.0, new Rotation2d(1.0));
+    ekf.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(
+                startTimestamp, visionPose, VecBuilder.fill(0.1, 0.2, 0.3))));
+
+    var estimate = ekf.getLatestEstimate();
+    assertPoseEquals(visionPose, estimate.pose());
+    assertEquals(0.01, estimate.covariance().get(0, 0), EPSILON);
+    assertEquals(0.04, estimate.covariance().get(1, 1), EPSILON);
+    assertEquals(0.09, estimate.covariance().get(2, 2), EPSILON);
+  }
+
+  @Test
+  void latestPoseIsCachedUntilNextUpdate() {
+    odometry.addDriveData(startTimestamp, new Twist2d(0.01, 0.0, 0.0));
+    Pose2d pose = odometry.getLatestPose();
+    assertSame(pose, odometry.getLatestPose());
+
+    odometry.addDriveData(startTimestamp + SAMPLE_PERIOD_SECS, new Twist2d(0.01, 0.0, 0.0));
+    assertNotSame(pose, odometry.getLatestPose());
+    assertEquals(0.02, odometry.getLatestPose().getX(), EPSILON);
+  }
+
+  /**
+   * Readers on other threads must always see a snapshot from a single update. Every update moves
+   * the robot by exactly (1, 1) at a timestamp derived from its index, so a torn read shows up as
+   * x != y or a timestamp which does not match x.
+   */
+  @Test
+  void concurrentReadersSeeConsistentSnapshots() throws InterruptedException {
+    int sampleCount = 200_000;
+    Twist2d twist = new Twist2d(1.0, 1.0, 0.0);
+    AtomicBoolean done = new AtomicBoolean(false);
+    AtomicReference<String> failure = new AtomicReference<>();
+
+    Thread[] readers = new Thread[3];
+    for (int r = 0; r < readers.length; r++) {
+      readers[r] =
+          new Thread(
+              () -> {
+                double[] estimate = new double[10];
+                double lastX = 0.0;
+                while (!done.get() && failure.get() == null) {
+                  Pose2d pose = odometry.getLatestPose();
+                  if (pose.getX() != pose.getY() || pose.getRotation().getRadians() != 0.0) {
+                    failure.compareAndSet(null, "Torn pose " + pose);
+                  }
+                  if (pose.getX() < lastX) {
+                    failure.compareAndSet(null, "Pose went back from " + lastX + " to " + pose);
+                  }
+                  lastX = pose.getX();
+
+                  odometry.getLatestEstimate(estimate);
+                  if (estimate[1] != estimate[2]) {
+                    failure.compareAndSet(
+                        null, "Torn estimate " + estimate[1] + ", " + estimate[2]);
+                  }
+                  if (estimate[1] > 0.0
+                      && estimate[0] != startTimestamp + estimate[1] * SAMPLE_PERIOD_SECS) {
+                    failure.compareAndSet(
+                        null, "Timestamp " + estimate[0] + " does not match x " + estimate[1]);
+                  }
+                }
+              });
+      readers[r].start();
+    }
+
+    for (int i = 1; i <= sampleCount; i++) {
+      odometry.addDriveData(startTimestamp + (double) i * SAMPLE_PERIOD_SECS, twist);
+    }
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    assertNull(failure.get());
+    assertEquals(sampleCount, odometry.getLatestPose().getX());
+  }
+
+  /**
+   * Returns the squared Mahalanobis distance of a vision pose 0.3 m to the side of odometry at the
+   * timestamp.
+   */
+  private static double distanceSquaredFromOdometry(RobotOdometry odometry, double timestamp) {
+    Pose2d pose = odometry.getPoseAt(timestamp);
+    return odometry.getMahalanobisDistanceSquared(
+        new TimestampedVisionUpdate(
+            timestamp,
+            new Pose2d(pose.getX(), pose.getY() + 0.3, pose.getRotation()),
+            VecBuilder.fill(0.1, 0.1, 0.1)));
+  }
+
+  /**
+   * Checks that a pose with no prior passes every vision pose, and that the check starts once the
+   * pose is corrected by vision.
+   */
+  private void assertOutlierCheckWaitsForPrior(RobotOdometry odometry) {
+    Twist2d twist = new Twist2d(0.01, 0.0, 0.0);
+    for (int i = 1; i <= 20; i++) {
+      odometry.addDriveData(startTimestamp + i * SAMPLE_PERIOD_SECS, twist);
+    }
+    assertEquals(
+        0.0,
+        odometry.getMahalanobisDistanceSquared(
+            new TimestampedVisionUpdate(
+                startTimestamp + 10 * SAMPLE_PERIOD_SECS,
+                new Pose2d(5.0, 5.0, new Rotation2d(1.0)),
+                VecBuilder.fill(0.01, 0.01, 0.01))));
+
+    // The first fix gives the pose a prior
+    odometry.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(
+                startTimestamp + 5 * SAMPLE_PERIOD_SECS,
+                new Pose2d(1.0, 0.0, new Rotation2d()),
+                VecBuilder.fill(0.01, 0.01, 0.01))));
+    assertTrue(
+        distanceSquaredFromOdometry(odometry, startTimestamp + 15 * SAMPLE_PERIOD_SECS) > 0.0);
+  }
+
+  /**
+   * Adds a vision pose 0.3 m to the side of odometry at the timestamp of the latest drive sample
+   * and returns how far it moved the latest pose.
+   */
+  private static double pullToSide(RobotOdometry odometry, double timestamp) {
+    Pose2d pose = odometry.getLatestPose();
+    odometry.addVisionData(
+        List.of(
+            new TimestampedVisionUpdate(
+                timestamp,
+                new Pose2d(pose.getX(), pose.getY() + 0.3, pose.getRotation()),
+                VecBuilder.fill(0.1, 0.1, 0.1))));
+    return odometry.getLatestPose().getY() - pose.getY();
+  }
+
+  /** Returns q, the drive noise added over every 20 ms, as a matrix. */
+  private static Matrix<N3, N3> getQ() {
+    Matrix<N3, N3> q = new Matrix<>(Nat.N3(), Nat.N3());
+    for (int i = 0; i < 3; i++) {
+      q.set(i, i, STATE_STD_DEVS.get(i, 0) * STATE_STD_DEVS.get(i, 0));
+    }
+    return q;
+  }
+
+  /** Returns the Jacobian of the motion from one pose to the next with respect to the first. */
+  private static Matrix<N3, N3> getJacobian(Pose2d from, Pose2d to) {
+    return MatBuilder.fill(
+        Nat.N3(),
+        Nat.N3(),
+        1.0,
+        0.0,
+        -(to.getY() - from.getY()),
+        0.0,
+        1.0,
+        to.getX() - from.getX(),
+        0.0,
+        0.0,
+        1.0);
+  }
+
+  private static List<Twist2d> randomTwists(Random random, int count) {
+    List<Twist2d> twists = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      twists.add(
+          new Twist2d(
+              random.nextDouble() * 0.02,
+              (random.nextDouble() - 0.5) * 0.01,
+              (random.nextDouble() - 0.5) * 0.02));
+    }
+    return twists;
+  }
+
+  private static void assertPoseEquals(Pose2d expected, Pose2d actual) {
+    assertEquals(expected.getX(), actual.getX(), EPSILON);
+    assertEquals(expected.getY(), actual.getY(), EPSILON);
+    assertEquals(expected.getRotation().getRadians(), actual.getRotation().getRadians(), EPSILON);
+  }
+
+  private static void assertMatrixEquals(Matrix<N3, N3> expected, Matrix<N3, N3> actual) {
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 3; col++) {
+        assertEquals(expected.get(row, col), actual.get(row, col), EPSILON);
+      }
+    }
+  }
+}